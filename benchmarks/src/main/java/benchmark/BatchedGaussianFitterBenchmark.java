@@ -0,0 +1,122 @@
+package benchmark;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.BatchedGaussianFitter;
+import analyze.PeakFitter;
+import ij.process.FloatProcessor;
+
+/**
+ * Fits the peaks of a frame one by one with {@link PeakFitter#fitPeak(ij.process.ImageProcessor, double[], double[])}
+ * and all at once with {@link BatchedGaussianFitter}, the score is the time per peak. The initial x position is
+ * offset pixels from the peak, a larger offset gives more rejected steps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchedGaussianFitterBenchmark {
+
+	private static final int PEAKS = 1000;
+	private static final int FRAME_SIZE = 512;
+	private static final int FIT_RADIUS = 3;
+	private static final int FIT_WIDTH = 2 * FIT_RADIUS + 1;
+
+	@Param({"0", "1"})
+	public int offset;
+
+	private FloatProcessor ip;
+	private int[][] centres = new int[PEAKS][2];
+	private double[] p = new double[BatchedGaussianFitter.PARAMETERS];
+	private double[] e = new double[BatchedGaussianFitter.PARAMETERS];
+	private double[] lower = new double[BatchedGaussianFitter.PARAMETERS];
+	private double[] upper = new double[BatchedGaussianFitter.PARAMETERS];
+	private BatchedGaussianFitter batch;
+
+	@Setup
+	public void setup() {
+
+		double[][] positions = new double[PEAKS][2];
+		ip = Synthetic.frame(FRAME_SIZE, PEAKS * 10000.0 / (FRAME_SIZE * FRAME_SIZE), 1, positions);
+
+		for (int i = 0; i < PEAKS; i++) {
+			centres[i][0] = (int)Math.round(positions[i][0]);
+			centres[i][1] = (int)Math.round(positions[i][1]);
+		}
+
+		batch = new BatchedGaussianFitter(FIT_WIDTH, FIT_WIDTH, PEAKS);
+		batch.maxLambda = PeakFitter.MAX_LAMBDA;
+		batch.relativePrecision = PeakFitter.RELATIVE_PRECISION;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PEAKS)
+	public double scalar() {
+
+		double sum = 0;
+
+		for (int[] centre: centres) {
+
+			ip.setRoi(centre[0] - FIT_RADIUS, centre[1] - FIT_RADIUS, FIT_WIDTH, FIT_WIDTH);
+			initialize(centre);
+
+			PeakFitter.fitPeak(ip, p, e);
+
+			sum += p[2] + p[3];
+		}
+
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PEAKS)
+	public double batched() {
+
+		double sum = 0;
+
+		batch.clear();
+
+		for (int[] centre: centres) {
+
+			Rectangle window = new Rectangle(centre[0] - FIT_RADIUS, centre[1] - FIT_RADIUS, FIT_WIDTH, FIT_WIDTH);
+			initialize(centre);
+
+			PeakFitter.getBounds(window, lower, upper);
+			batch.add(ip, window.x, window.y, p, lower, upper);
+		}
+
+		batch.solve();
+
+		for (int i = 0; i < PEAKS; i++) {
+			batch.getResult(i, p, e);
+			sum += p[2] + p[3];
+		}
+
+		return sum;
+	}
+
+	private void initialize(int[] centre) {
+
+		Arrays.fill(p, Double.NaN);
+		p[2] = centre[0] + offset;
+		p[3] = centre[1];
+	}
+
+}
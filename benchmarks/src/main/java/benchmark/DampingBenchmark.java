@@ -0,0 +1,332 @@
+package benchmark;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.Gaussian2D;
+import analyze.LevenbergMarquardt;
+import analyze.PeakFitter;
+import analyze.SolverWorkspace;
+import analyze.StepSizeDistribution;
+
+/**
+ * Compares the damping strategies and geodesic acceleration of {@link LevenbergMarquardt} on the workloads of the
+ * peak fitter (gaussians in 9x9 windows, with the initial guess of the peak fitter and with a poor initial guess)
+ * and of the step size distribution (jump distance histograms). The score is the time per fit.
+ *
+ * The setup prints the mean number of iterations and rejected steps, the number of fits that did not converge and
+ * the largest deviation of the converged fits from a reference fit (classic Marquardt damping from a good initial
+ * guess, in fitting errors).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DampingBenchmark {
+
+	private static final int PROBLEMS = 1000;
+	private static final int WINDOW = 9;
+
+	public enum Workload {
+		PEAK,
+		PEAK_POOR_GUESS,
+		STEP_SIZE
+	};
+
+	@Param({"PEAK", "PEAK_POOR_GUESS", "STEP_SIZE"})
+	public Workload workload;
+
+	@Param({"MARQUARDT", "NIELSEN", "DELAYED_GRATIFICATION"})
+	public LevenbergMarquardt.Damping damping;
+
+	@Param({"false", "true"})
+	public boolean useGeodesicAcceleration;
+
+	private Problems problems;
+	private LevenbergMarquardt lm;
+	private SolverWorkspace workspace;
+	private double[] p;
+	private double[] e;
+
+	private interface Problems {
+
+		public LevenbergMarquardt createModel();
+
+		public int getParameters();
+
+		// sets up problem k with the initial guess of the workload (or a good initial guess for the reference fit),
+		// returns the number of points
+		public int setProblem(int k, double[] parameters, boolean isReference);
+
+		public double[][] getX();
+
+		public double[] getY();
+
+	}
+
+	private static class PeakProblems implements Problems {
+
+		private double[][] x = new double[WINDOW * WINDOW][2];
+		private double[][] y;
+		private double[] yk = new double[WINDOW * WINDOW];
+		private double[][] peaks;
+		private boolean isPoorGuess;
+
+		public PeakProblems(boolean isPoorGuess) {
+
+			this.isPoorGuess = isPoorGuess;
+
+			Random random = new Random(1);
+
+			y = new double[PROBLEMS][WINDOW * WINDOW];
+			peaks = new double[PROBLEMS][];
+
+			for (int i = 0; i < x.length; i++) {
+				x[i][0] = i % WINDOW;
+				x[i][1] = i / WINDOW;
+			}
+
+			for (int k = 0; k < PROBLEMS; k++) {
+
+				double[] p = {Synthetic.BACKGROUND, 200 + 1000 * random.nextDouble(), 4 + random.nextDouble() - 0.5,
+						4 + random.nextDouble() - 0.5, 1 + 0.5 * random.nextDouble(), 1 + 0.5 * random.nextDouble()};
+
+				for (int i = 0; i < x.length; i++) {
+					double dx = x[i][0] - p[2];
+					double dy = x[i][1] - p[3];
+					double value = p[0] + p[1] * Math.exp(-(dx * dx / (2 * p[4] * p[4]) + dy * dy / (2 * p[5] * p[5])));
+
+					y[k][i] = value + Math.sqrt(value) * random.nextGaussian();
+				}
+
+				peaks[k] = p;
+			}
+
+		}
+
+		@Override
+		public LevenbergMarquardt createModel() {
+
+			LevenbergMarquardt lm = new Gaussian2D();
+
+			lm.lowerBounds = new double[6];
+			lm.upperBounds = new double[6];
+			lm.maxLambda = PeakFitter.MAX_LAMBDA;
+			lm.relativePrecision = PeakFitter.RELATIVE_PRECISION;
+
+			PeakFitter.getBounds(new Rectangle(0, 0, WINDOW, WINDOW), lm.lowerBounds, lm.upperBounds);
+
+			return lm;
+		}
+
+		@Override
+		public int getParameters() {
+			return 6;
+		}
+
+		@Override
+		public int setProblem(int k, double[] p, boolean isReference) {
+
+			double min = Double.MAX_VALUE;
+
+			for (double value: y[k])
+				min = Math.min(min, value);
+
+			// initial guess of the peak fitter (the brightest pixel), or a guess that is two pixels off
+			if (isPoorGuess && !isReference) {
+				p[0] = min;
+				p[1] = 0.5 * peaks[k][1];
+				p[2] = peaks[k][2] + 2;
+				p[3] = peaks[k][3] - 2;
+				p[4] = 3;
+				p[5] = 0.5;
+			}
+			else {
+				p[0] = min;
+				p[1] = y[k][4 * WINDOW + 4] - min;
+				p[2] = 4;
+				p[3] = 4;
+				p[4] = 1;
+				p[5] = 1;
+			}
+
+			System.arraycopy(y[k], 0, yk, 0, yk.length);
+
+			return x.length;
+		}
+
+		@Override
+		public double[][] getX() {
+			return x;
+		}
+
+		@Override
+		public double[] getY() {
+			return yk;
+		}
+
+	}
+
+	private static class StepSizeProblems implements Problems {
+
+		private static final double BINNING = 0.01;
+		private static final int BINS = 100;
+
+		private double[][] x = new double[BINS][1];
+		private double[][] y;
+		private double[] yk = new double[BINS];
+		private double[] msd;
+
+		public StepSizeProblems() {
+
+			Random random = new Random(2);
+
+			y = new double[PROBLEMS][BINS];
+			msd = new double[PROBLEMS];
+
+			for (int i = 0; i < BINS; i++)
+				x[i][0] = (i + 0.5) * BINNING;
+
+			for (int k = 0; k < PROBLEMS; k++) {
+
+				// steps of a brownian particle, the step size distribution is 2r / msd * exp(-r^2 / msd)
+				msd[k] = 0.01 + 0.04 * random.nextDouble();
+				int steps = 1000;
+
+				for (int j = 0; j < steps; j++) {
+					double r = Math.sqrt(-msd[k] * Math.log(1 - random.nextDouble()));
+					int bin = (int)(r / BINNING);
+
+					if (bin < BINS)
+						y[k][bin] += 1.0 / (steps * BINNING);
+				}
+
+			}
+
+		}
+
+		@Override
+		public LevenbergMarquardt createModel() {
+			return StepSizeDistribution.createModel();
+		}
+
+		@Override
+		public int getParameters() {
+			return 1;
+		}
+
+		@Override
+		public int setProblem(int k, double[] p, boolean isReference) {
+
+			// the initial guess is five times too large
+			p[0] = isReference ? msd[k] : 5 * msd[k];
+			System.arraycopy(y[k], 0, yk, 0, BINS);
+
+			return BINS;
+		}
+
+		@Override
+		public double[][] getX() {
+			return x;
+		}
+
+		@Override
+		public double[] getY() {
+			return yk;
+		}
+
+	}
+
+	@Setup
+	public void setup() {
+
+		switch (workload) {
+		case PEAK:
+			problems = new PeakProblems(false);
+			break;
+		case PEAK_POOR_GUESS:
+			problems = new PeakProblems(true);
+			break;
+		default:
+			problems = new StepSizeProblems();
+		}
+
+		int parameters = problems.getParameters();
+
+		workspace = new SolverWorkspace(parameters);
+		p = new double[parameters];
+		e = new double[parameters];
+
+		// reference: classic damping from a good initial guess
+		LevenbergMarquardt reference = problems.createModel();
+		double[] referenceParameters = new double[parameters];
+		double[] referenceErrors = new double[parameters];
+
+		lm = problems.createModel();
+		lm.damping = damping;
+		lm.useGeodesicAcceleration = useGeodesicAcceleration;
+
+		long iterations = 0;
+		long rejectedSteps = 0;
+		int notConverged = 0;
+		double maxDeviation = 0;
+
+		for (int k = 0; k < PROBLEMS; k++) {
+
+			int n = problems.setProblem(k, referenceParameters, true);
+			reference.solve(problems.getX(), problems.getY(), null, n, referenceParameters, null, referenceErrors, 0.001, workspace);
+
+			n = problems.setProblem(k, p, false);
+			lm.solve(problems.getX(), problems.getY(), null, n, p, null, e, 0.001, workspace);
+
+			iterations += lm.iterations;
+			rejectedSteps += lm.rejectedSteps;
+
+			if (!lm.termination.isConverged()) {
+				notConverged++;
+				continue;
+			}
+
+			for (int j = 0; j < parameters; j++)
+				maxDeviation = Math.max(maxDeviation, Math.abs(Math.abs(p[j]) - Math.abs(referenceParameters[j])) / referenceErrors[j]);
+
+		}
+
+		System.out.printf("iterations %.2f  rejected %.2f  not converged %d  max deviation %.4f\n",
+				(double)iterations / PROBLEMS, (double)rejectedSteps / PROBLEMS, notConverged, maxDeviation);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PROBLEMS)
+	public double fit() {
+
+		double sum = 0;
+
+		for (int k = 0; k < PROBLEMS; k++) {
+
+			int n = problems.setProblem(k, p, false);
+			lm.solve(problems.getX(), problems.getY(), null, n, p, null, e, 0.001, workspace);
+
+			sum += p[0];
+		}
+
+		return sum;
+	}
+
+}
@@ -0,0 +1,62 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.FloatProcessor;
+import process.DiscoidalAveragingFilter;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoidalAveragingFilterBenchmark {
+
+	@Param({"256", "512"})
+	public int frameSize;
+
+	@Param({"1", "2"})
+	public int innerRadius;
+
+	@Param({"3", "6"})
+	public int outerRadius;
+
+	@Param({"10"})
+	public double density;
+
+	private float[] source;
+	private FloatProcessor ip;
+	private DiscoidalAveragingFilter filter;
+
+	@Setup
+	public void setup() {
+
+		source = (float[])Synthetic.frame(frameSize, density, 1, null).getPixels();
+		ip = new FloatProcessor(frameSize, frameSize, new float[source.length]);
+		filter = new DiscoidalAveragingFilter(frameSize, innerRadius, outerRadius);
+	}
+
+	@Benchmark
+	public FloatProcessor filter() {
+
+		// the filter works in place, so every run starts from the same frame
+		System.arraycopy(source, 0, ip.getPixels(), 0, source.length);
+		filter.run(ip);
+
+		return ip;
+	}
+
+}
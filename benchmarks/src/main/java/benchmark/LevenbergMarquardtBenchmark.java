@@ -0,0 +1,119 @@
+package benchmark;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.Gaussian2D;
+import analyze.LevenbergMarquardt;
+import analyze.PeakFitter;
+import analyze.SolverWorkspace;
+
+/**
+ * Solves gaussian fits of the peak fitter directly with {@link LevenbergMarquardt}, without reading pixels from
+ * an image. The score is the time per fit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevenbergMarquardtBenchmark {
+
+	private static final int PROBLEMS = 64;
+
+	@Param({"7", "9", "15"})
+	public int windowSize;
+
+	@Param({"CHOLESKY", "GAUSS_JORDAN"})
+	public LevenbergMarquardt.Solver solver;
+
+	@Param({"MARQUARDT", "NIELSEN"})
+	public LevenbergMarquardt.Damping damping;
+
+	private LevenbergMarquardt lm;
+	private SolverWorkspace workspace;
+	private double[][] x;
+	private double[][] y;
+	private double[][] initial;
+	private double[] p = new double[6];
+	private double[] e = new double[6];
+
+	@Setup
+	public void setup() {
+
+		int n = windowSize * windowSize;
+		double centre = (windowSize - 1) / 2.0;
+		Random random = new Random(1);
+
+		lm = new Gaussian2D();
+		lm.solver = solver;
+		lm.damping = damping;
+		lm.lowerBounds = new double[6];
+		lm.upperBounds = new double[6];
+		lm.maxLambda = PeakFitter.MAX_LAMBDA;
+		lm.relativePrecision = PeakFitter.RELATIVE_PRECISION;
+		PeakFitter.getBounds(new Rectangle(0, 0, windowSize, windowSize), lm.lowerBounds, lm.upperBounds);
+
+		workspace = new SolverWorkspace(6);
+		x = new double[n][2];
+		y = new double[PROBLEMS][n];
+		initial = new double[PROBLEMS][6];
+
+		for (int i = 0; i < n; i++) {
+			x[i][0] = i % windowSize;
+			x[i][1] = i / windowSize;
+		}
+
+		for (int k = 0; k < PROBLEMS; k++) {
+
+			double[] q = {Synthetic.BACKGROUND, 200 + 1000 * random.nextDouble(), centre + random.nextDouble() - 0.5,
+					centre + random.nextDouble() - 0.5, 1 + 0.5 * random.nextDouble(), 1 + 0.5 * random.nextDouble()};
+
+			double min = Double.MAX_VALUE;
+
+			for (int i = 0; i < n; i++) {
+				double value = lm.getValue(x[i], q);
+				y[k][i] = value + Math.sqrt(value) * random.nextGaussian();
+				min = Math.min(min, y[k][i]);
+			}
+
+			// the initial guess of the peak fitter
+			int middle = (int)centre * windowSize + (int)centre;
+			initial[k] = new double[] {min, y[k][middle] - min, (int)centre, (int)centre, 1, 1};
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PROBLEMS)
+	public double solve() {
+
+		double sum = 0;
+
+		for (int k = 0; k < PROBLEMS; k++) {
+
+			System.arraycopy(initial[k], 0, p, 0, 6);
+			lm.solve(x, y[k], null, x.length, p, null, e, 0.001, workspace);
+
+			sum += p[2];
+		}
+
+		return sum;
+	}
+
+}
@@ -0,0 +1,66 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.PalmReconstructor;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+
+/**
+ * Renders the peaks of a results table of a 256 x 256 field with {@link PalmReconstructor#render(ResultsTable,
+ * ij.process.ImageProcessor, double, double, double, PalmReconstructor.Type)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PalmReconstructorBenchmark {
+
+	private static final int FIELD_SIZE = 256;
+
+	@Param({"10000", "100000"})
+	public int localizations;
+
+	@Param({"4", "10"})
+	public double magnification;
+
+	@Param({"GAUSSIAN", "PIXEL"})
+	public PalmReconstructor.Type type;
+
+	private ResultsTable table;
+	private FloatProcessor ip;
+
+	@Setup
+	public void setup() {
+
+		int size = (int)(FIELD_SIZE * magnification);
+
+		table = Synthetic.particles(100, localizations / 100, FIELD_SIZE, 1, 0, 1);
+		ip = new FloatProcessor(size, size);
+	}
+
+	@Benchmark
+	public FloatProcessor render() {
+
+		Arrays.fill((float[])ip.getPixels(), 0);
+		PalmReconstructor.render(table, ip, 0, 0, magnification, type);
+
+		return ip;
+	}
+
+}
@@ -0,0 +1,63 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.ParticleTracker;
+import ij.measure.ResultsTable;
+
+/**
+ * Links the peaks of a results table into trajectories with {@link ParticleTracker#link(ResultsTable, int, double)}.
+ * Linking changes the table, so every invocation works on a fresh copy (the copy is not timed).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticleTrackerBenchmark {
+
+	@Param({"100"})
+	public int slices;
+
+	@Param({"100", "1000"})
+	public int particlesPerSlice;
+
+	@Param({"4", "8"})
+	public double maxStepSize;
+
+	@Param({"1", "3"})
+	public int lookAhead;
+
+	private ResultsTable source;
+	private ResultsTable table;
+
+	@Setup
+	public void setup() {
+		source = Synthetic.particles(slices, particlesPerSlice, 512, 1, 0.1, 1);
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		table = (ResultsTable)source.clone();
+	}
+
+	@Benchmark
+	public int link() {
+		return ParticleTracker.link(table, lookAhead, maxStepSize);
+	}
+
+}
@@ -0,0 +1,59 @@
+package benchmark;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.PeakFinder;
+import ij.process.FloatProcessor;
+import process.DiscoidalAveragingFilter;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeakFinderBenchmark {
+
+	@Param({"256", "512"})
+	public int frameSize;
+
+	// peaks per 100 x 100 pixels
+	@Param({"1", "10", "40"})
+	public double density;
+
+	@Param({"true", "false"})
+	public boolean useDiscoidalAveraging;
+
+	@Param({"8"})
+	public int minimumDistance;
+
+	private FloatProcessor ip;
+	private PeakFinder finder;
+
+	@Setup
+	public void setup() {
+
+		ip = Synthetic.frame(frameSize, density, 1, null);
+		finder = new PeakFinder(useDiscoidalAveraging, new DiscoidalAveragingFilter(frameSize, 1, 3), 6, 0, minimumDistance, 4);
+	}
+
+	@Benchmark
+	public ArrayList<Point> findPeaks() {
+		return finder.findPeaks(ip);
+	}
+
+}
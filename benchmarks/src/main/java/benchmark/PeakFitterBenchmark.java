@@ -0,0 +1,81 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import analyze.PeakFitter;
+import ij.process.FloatProcessor;
+
+/**
+ * Fits all peaks of a frame with {@link PeakFitter#fitPeak(ij.process.ImageProcessor, double[], double[], boolean)},
+ * the score is the time per peak.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeakFitterBenchmark {
+
+	private static final int PEAKS = 100;
+	private static final int FRAME_SIZE = 256;
+
+	@Param({"3", "4", "6"})
+	public int fitRadius;
+
+	@Param({"false", "true"})
+	public boolean fastMath;
+
+	private FloatProcessor ip;
+	private int[][] centres = new int[PEAKS][2];
+	private double[] p = new double[6];
+	private double[] e = new double[6];
+
+	@Setup
+	public void setup() {
+
+		double[][] positions = new double[PEAKS][2];
+		ip = Synthetic.frame(FRAME_SIZE, PEAKS * 10000.0 / (FRAME_SIZE * FRAME_SIZE), 1, positions);
+
+		for (int i = 0; i < PEAKS; i++) {
+			centres[i][0] = (int)Math.round(positions[i][0]);
+			centres[i][1] = (int)Math.round(positions[i][1]);
+		}
+
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PEAKS)
+	public double fitPeaks() {
+
+		int fitWidth = fitRadius * 2 + 1;
+		double sum = 0;
+
+		for (int[] centre: centres) {
+
+			ip.setRoi(centre[0] - fitRadius, centre[1] - fitRadius, fitWidth, fitWidth);
+			Arrays.fill(p, Double.NaN);
+
+			PeakFitter.fitPeak(ip, p, e, fastMath);
+
+			sum += p[2] + p[3];
+		}
+
+		return sum;
+	}
+
+}
@@ -0,0 +1,57 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.measure.ResultsTable;
+import util.ResultsTableSorter;
+
+/**
+ * Sorts a results table of peaks (in slice order) on x and y. Sorting is in place, so every invocation
+ * works on a fresh copy (the copy is not timed).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultsTableSorterBenchmark {
+
+	@Param({"10000", "100000", "1000000"})
+	public int rows;
+
+	private ResultsTable source;
+	private ResultsTable table;
+
+	@Setup
+	public void setup() {
+		source = Synthetic.particles(100, rows / 100, 512, 1, 0, 1);
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() {
+		table = (ResultsTable)source.clone();
+	}
+
+	@Benchmark
+	public ResultsTable sort() {
+
+		ResultsTableSorter.sort(table, true, "x", "y");
+
+		return table;
+	}
+
+}
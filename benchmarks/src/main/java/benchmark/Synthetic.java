@@ -0,0 +1,108 @@
+package benchmark;
+
+import java.util.Random;
+
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+
+/**
+ * Synthetic input for the benchmarks: frames with gaussian peaks on a noisy background and
+ * results tables of diffusing particles. The same seed always gives the same data.
+ */
+public class Synthetic {
+
+	public static final double BACKGROUND = 100;
+
+	/**
+	 * Creates a frame of size x size pixels with density peaks per 100 x 100 pixels. The positions
+	 * (x, y) of the peaks are stored in positions when it is not null.
+	 */
+	public static FloatProcessor frame(int size, double density, long seed, double[][] positions) {
+
+		Random random = new Random(seed);
+		float[] pixels = new float[size * size];
+		int peaks = (int)Math.round(density * size * size / 10000.0);
+
+		for (int i = 0; i < peaks; i++) {
+
+			double x0 = 5 + random.nextDouble() * (size - 10);
+			double y0 = 5 + random.nextDouble() * (size - 10);
+			double height = 200 + 1000 * random.nextDouble();
+			double sigma = 1 + 0.5 * random.nextDouble();
+
+			if (positions != null && i < positions.length) {
+				positions[i][0] = x0;
+				positions[i][1] = y0;
+			}
+
+			for (int y = Math.max(0, (int)y0 - 5); y <= Math.min(size - 1, (int)y0 + 5); y++) {
+				for (int x = Math.max(0, (int)x0 - 5); x <= Math.min(size - 1, (int)x0 + 5); x++) {
+					double dx = x - x0;
+					double dy = y - y0;
+					pixels[y * size + x] += height * Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+				}
+			}
+
+		}
+
+		// shot noise (gaussian approximation)
+		for (int i = 0; i < pixels.length; i++) {
+			double value = BACKGROUND + pixels[i];
+			pixels[i] = (float)(value + Math.sqrt(value) * random.nextGaussian());
+		}
+
+		return new FloatProcessor(size, size, pixels);
+	}
+
+	/**
+	 * Returns the number of peaks in a frame created with {@link #frame(int, double, long, double[][])}.
+	 */
+	public static int numberOfPeaks(int size, double density) {
+		return (int)Math.round(density * size * size / 10000.0);
+	}
+
+	/**
+	 * Creates a results table (slice, x, y, error_x, error_y) of particles diffusing in a field of size x size
+	 * pixels. A particle is missed in a slice with the given probability (blinking), particles leaving the field
+	 * are replaced by new ones.
+	 */
+	public static ResultsTable particles(int slices, int particles, int size, double stepSize, double blinking, long seed) {
+
+		Random random = new Random(seed);
+		ResultsTable table = new ResultsTable();
+		double[][] positions = new double[particles][2];
+
+		for (double[] position: positions) {
+			position[0] = random.nextDouble() * size;
+			position[1] = random.nextDouble() * size;
+		}
+
+		for (int slice = 1; slice <= slices; slice++) {
+
+			for (double[] position: positions) {
+
+				position[0] += stepSize * random.nextGaussian();
+				position[1] += stepSize * random.nextGaussian();
+
+				if (position[0] < 0 || position[0] >= size || position[1] < 0 || position[1] >= size) {
+					position[0] = random.nextDouble() * size;
+					position[1] = random.nextDouble() * size;
+				}
+
+				if (random.nextDouble() < blinking)
+					continue;
+
+				table.incrementCounter();
+				table.addValue("slice", slice);
+				table.addValue("x", position[0]);
+				table.addValue("y", position[1]);
+				table.addValue("error_x", 0.02 + 0.03 * random.nextDouble());
+				table.addValue("error_y", 0.02 + 0.03 * random.nextDouble());
+			}
+
+		}
+
+		return table;
+	}
+
+}
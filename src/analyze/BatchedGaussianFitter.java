@@ -0,0 +1,738 @@
+package analyze;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Fits the gaussian of the peak fitter (p[0] + p[1] * exp(-((x - p[2])^2 / (2 * p[4]^2) + (y - p[3])^2 / (2 * p[5]^2))))
+ * to many windows of the same size at once.
+ *
+ * The problems are stored as structure of arrays: value j of problem k is stored at j * capacity + k, so every
+ * step of the Levenberg-Marquardt iteration is a loop over the problems with unit stride. All problems iterate in
+ * lockstep, each with its own damping factor. A problem that has converged is retired by swapping it with the last
+ * active problem, so the loops only run over the active ones. As in the scalar solver, the normal equations of a
+ * problem whose last step was rejected are kept (its parameters did not change): the problems that took a step are
+ * swapped to the front of the active range and only those are evaluated.
+ *
+ * Most of the time goes to the exponentials, which the JIT compiler does not vectorize, so the batch is only
+ * somewhat faster than the scalar fits (1.1 to 1.5 times on one core, see BatchedGaussianFitterBenchmark).
+ *
+ * Saturated pixels are not removed from a window (that would change its shape) but get a weight of zero. The
+ * iteration is the same as {@link LevenbergMarquardt} with the {@link LevenbergMarquardt.Solver#CHOLESKY} solver
+ * (with the same precision, relative precision, bounds and divergence detection; the gradient and step tolerances
+ * are not supported), so the results agree with the scalar fits up to rounding.
+ */
+public class BatchedGaussianFitter {
+
+	public static final int PARAMETERS = 6;
+
+	private static final int ELEMENTS = PARAMETERS * (PARAMETERS + 1) / 2;	// lower triangle of the normal matrix
+	private static final int BLOCK = 64;
+
+	public int maxIterations = LevenbergMarquardt.DEFAULT_MAX_ITERATIONS;
+	public double precision = 1e-6;
+	public double relativePrecision = 0;
+	public int maxBoundViolations = 3;
+	public double maxLambda = Double.POSITIVE_INFINITY;
+
+	private int width;
+	private int height;
+	private int points;
+	private int capacity;
+	private int size = 0;
+	private int active = 0;
+
+	// per point and problem (point * capacity + k)
+	private double[] y;
+	private double[] weight;
+
+	// per parameter and problem (j * capacity + k)
+	private double[] p;
+	private double[] trial;
+	private double[] lowerBounds;
+	private double[] upperBounds;
+	private double[] beta;
+	private double[] alpha;		// element e of the lower triangle at e * capacity + k
+
+	// per problem
+	private double[] originX;
+	private double[] originY;
+	private double[] lambda;
+	private double[] sumOfSquares;
+	private double[] trialSumOfSquares;
+	private int[] n;
+	private int[] iterations;
+	private int[] rejectedSteps;
+	private int[] boundViolations;
+	private boolean[] current;	// whether alpha, beta and sumOfSquares belong to p
+	private boolean[] singular;	// whether the damped normal matrix of the last iteration was not positive definite
+	private LevenbergMarquardt.Termination[] termination;
+	private int[] problem;		// problem stored at position k
+	private int[] position;		// position of a problem
+
+	private double[] error;		// per problem and parameter (problem * PARAMETERS + j)
+
+	// temporary arrays
+	private double[] e;
+	private double[] inverseSigmaX;
+	private double[] inverseSigmaY;
+	private double[] inverseVarianceX;
+	private double[] inverseVarianceY;
+	private double[] matrix = new double[PARAMETERS * PARAMETERS];
+	private double[] vector = new double[PARAMETERS];
+
+	public BatchedGaussianFitter(int width, int height, int capacity) {
+
+		this.width = width;
+		this.height = height;
+		this.capacity = capacity;
+
+		points = width * height;
+
+		y = new double[points * capacity];
+		weight = new double[points * capacity];
+
+		p = new double[PARAMETERS * capacity];
+		trial = new double[PARAMETERS * capacity];
+		lowerBounds = new double[PARAMETERS * capacity];
+		upperBounds = new double[PARAMETERS * capacity];
+		beta = new double[PARAMETERS * capacity];
+		alpha = new double[ELEMENTS * capacity];
+
+		originX = new double[capacity];
+		originY = new double[capacity];
+		lambda = new double[capacity];
+		sumOfSquares = new double[capacity];
+		trialSumOfSquares = new double[capacity];
+		n = new int[capacity];
+		iterations = new int[capacity];
+		rejectedSteps = new int[capacity];
+		boundViolations = new int[capacity];
+		current = new boolean[capacity];
+		singular = new boolean[capacity];
+		termination = new LevenbergMarquardt.Termination[capacity];
+		problem = new int[capacity];
+		position = new int[capacity];
+
+		error = new double[PARAMETERS * capacity];
+		e = new double[capacity];
+		inverseSigmaX = new double[capacity];
+		inverseSigmaY = new double[capacity];
+		inverseVarianceX = new double[capacity];
+		inverseVarianceY = new double[capacity];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+		active = 0;
+	}
+
+	public int add(ImageProcessor ip, int x, int y, double[] initial) {
+		return add(ip, x, y, initial, null, null);
+	}
+
+	/**
+	 * Adds the window of the image processor with its top left corner at (x, y) as a new problem. The initial
+	 * parameters are determined like {@link PeakFitter#fitPeak(ImageProcessor, double[], double[])} does: NaN
+	 * parameters are estimated from the window. The bounds (null when unbounded) are used like the bounds of
+	 * {@link LevenbergMarquardt}.
+	 *
+	 * @return the index of the problem
+	 */
+	public int add(ImageProcessor ip, int x, int y, double[] initial, double[] lower, double[] upper) {
+
+		if (size == capacity)
+			throw new IllegalStateException("batch is full (" + capacity + " problems)");
+
+		int k = size++;
+
+		problem[k] = k;
+		position[k] = k;
+		originX[k] = x;
+		originY[k] = y;
+		lambda[k] = 0.001;
+		iterations[k] = 0;
+		rejectedSteps[k] = 0;
+		boundViolations[k] = 0;
+		current[k] = false;
+		termination[k] = null;
+
+		double maxValue = ip.maxValue();
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		int maxPoint = 0;
+		int count = 0;
+
+		for (int point = 0; point < points; point++) {
+
+			double value = ip.getf(x + point % width, y + point / width);
+
+			this.y[point * capacity + k] = value;
+
+			// ignore saturated values
+			if (value < maxValue) {
+
+				weight[point * capacity + k] = 1;
+				count++;
+
+				if (value > max) {
+					max = value;
+					maxPoint = point;
+				}
+
+				if (value < min)
+					min = value;
+			}
+			else
+				weight[point * capacity + k] = 0;
+
+		}
+
+		n[k] = count;
+
+		double[] q = initial.clone();
+
+		if (!Double.isNaN(q[2]) && !Double.isNaN(q[3])) {
+			q[0] = min;
+			q[1] = ip.getf((int)q[2], (int)q[3]) - q[0];
+		}
+
+		if (Double.isNaN(q[0])) q[0] = min;
+		if (Double.isNaN(q[1])) q[1] = max - min;
+		if (Double.isNaN(q[2])) q[2] = x + maxPoint % width;
+		if (Double.isNaN(q[3])) q[3] = y + maxPoint / width;
+		if (Double.isNaN(q[4])) q[4] = 1;
+		if (Double.isNaN(q[5])) q[5] = 1;
+
+		for (int j = 0; j < PARAMETERS; j++) {
+			lowerBounds[j * capacity + k] = lower == null ? Double.NEGATIVE_INFINITY : lower[j];
+			upperBounds[j * capacity + k] = upper == null ? Double.POSITIVE_INFINITY : upper[j];
+			p[j * capacity + k] = q[j];
+		}
+
+		project(p, k);
+
+		return k;
+	}
+
+	public void solve() {
+
+		active = size;
+
+		while (active > 0) {
+
+			computeNormalEquations(p);
+
+			// solve the damped normal equations of every problem
+			for (int k = 0; k < active; k++) {
+
+				iterations[k]++;
+
+				for (int i = 0, element = 0; i < PARAMETERS; i++) {
+					for (int j = 0; j <= i; j++, element++)
+						matrix[i * PARAMETERS + j] = alpha[element * capacity + k];
+
+					matrix[i * PARAMETERS + i] *= 1 + lambda[k];
+					vector[i] = beta[i * capacity + k];
+				}
+
+				boolean isPositiveDefinite = LevenbergMarquardt.decompose(matrix, PARAMETERS);
+
+				if (isPositiveDefinite) {
+					LevenbergMarquardt.substitute(matrix, PARAMETERS, vector, 0, 1);
+				}
+				else {
+					// no step this iteration, the step is rejected below to increase the damping
+					for (int i = 0; i < PARAMETERS; i++)
+						vector[i] = 0;
+				}
+
+				singular[k] = !isPositiveDefinite;
+
+				for (int j = 0; j < PARAMETERS; j++)
+					trial[j * capacity + k] = p[j * capacity + k] + vector[j];
+
+				// a step clamped to the bounds only counts as a violation when it is rejected
+				if (project(trial, k))
+					boundViolations[k]++;
+				else
+					boundViolations[k] = 0;
+			}
+
+			computeSumOfSquares(trial, trialSumOfSquares);
+
+			// accept or reject the steps, retire the converged problems
+			for (int k = 0; k < active; k++) {
+
+				double improvement = Math.abs(trialSumOfSquares[k] - sumOfSquares[k]);
+
+				if (singular[k]) {
+
+					lambda[k] *= 10;
+					rejectedSteps[k]++;
+
+					if (lambda[k] > maxLambda || Double.isInfinite(lambda[k]))
+						termination[k] = LevenbergMarquardt.Termination.SINGULAR;
+					else if (iterations[k] >= maxIterations)
+						termination[k] = LevenbergMarquardt.Termination.MAX_ITERATIONS;
+				}
+				else {
+
+					if (trialSumOfSquares[k] < sumOfSquares[k]) {
+
+						for (int j = 0; j < PARAMETERS; j++)
+							p[j * capacity + k] = trial[j * capacity + k];
+
+						lambda[k] /= 10;
+						current[k] = false;
+						boundViolations[k] = 0;
+					}
+					else {
+						lambda[k] *= 10;
+						rejectedSteps[k]++;
+					}
+
+					if (improvement < precision || improvement < relativePrecision * sumOfSquares[k])
+						termination[k] = LevenbergMarquardt.Termination.CONVERGED;
+					else if (lambda[k] > maxLambda)
+						termination[k] = LevenbergMarquardt.Termination.LAMBDA_EXPLODED;
+					else if (boundViolations[k] >= maxBoundViolations)
+						termination[k] = LevenbergMarquardt.Termination.BOUNDS_VIOLATED;
+					else if (iterations[k] >= maxIterations)
+						termination[k] = LevenbergMarquardt.Termination.MAX_ITERATIONS;
+				}
+
+				if (termination[k] != null) {
+					retire(k);
+					k--;	// the last active problem has been moved to position k
+				}
+
+			}
+
+		}
+
+		// errors from the covariance matrix at the solution
+		active = size;
+		computeNormalEquations(p);
+
+		for (int k = 0; k < size; k++) {
+
+			for (int i = 0, element = 0; i < PARAMETERS; i++) {
+				for (int j = 0; j <= i; j++, element++)
+					matrix[i * PARAMETERS + j] = alpha[element * capacity + k];
+			}
+
+			boolean isInvertible = LevenbergMarquardt.decompose(matrix, PARAMETERS);
+			int m = problem[k] * PARAMETERS;
+
+			for (int j = 0; j < PARAMETERS; j++) {
+
+				if (isInvertible) {
+
+					for (int i = 0; i < PARAMETERS; i++)
+						vector[i] = i == j ? 1 : 0;
+
+					LevenbergMarquardt.substitute(matrix, PARAMETERS, vector, 0, 1);
+					error[m + j] = Math.sqrt(vector[j] * sumOfSquares[k] / (n[k] - PARAMETERS));
+				}
+				else
+					error[m + j] = Double.NaN;
+
+			}
+
+		}
+
+		active = 0;
+	}
+
+	/**
+	 * Determines the normal equations and sum of squares at the given parameters of the active problems that are not
+	 * current. These problems are moved to the front of the active range first, so they are evaluated with unit
+	 * stride.
+	 */
+	private void computeNormalEquations(double[] p) {
+
+		int c = capacity;
+		int count = 0;
+
+		for (int k = 0; k < active; k++) {
+
+			if (!current[k]) {
+
+				// the problems from count to k are current
+				if (k != count)
+					swap(k, count);
+
+				current[count++] = true;
+			}
+
+		}
+
+		computeInverseVariances(p, count);
+
+		for (int k = 0; k < count; k++) {
+
+			for (int element = 0; element < ELEMENTS; element++)
+				alpha[element * c + k] = 0;
+
+			for (int j = 0; j < PARAMETERS; j++)
+				beta[j * c + k] = 0;
+
+			sumOfSquares[k] = 0;
+		}
+
+		// blocks of problems, so the sums of a block stay in the cache while all points are visited
+		for (int from = 0; from < count; from += BLOCK) {
+
+			int to = Math.min(from + BLOCK, count);
+
+			for (int point = 0; point < points; point++) {
+
+				int row = point * c;
+				int px = point % width;
+				int py = point / width;
+
+				computeExponentials(p, px, py, from, to);
+
+				// the loop body has no calls or branches
+				for (int k = from; k < to; k++) {
+
+					double dx = originX[k] + px - p[2 * c + k];
+					double dy = originY[k] + py - p[3 * c + k];
+					double gx = dx * inverseVarianceX[k];
+					double gy = dy * inverseVarianceY[k];
+					double w = weight[row + k];
+					double g1 = e[k];
+					double he = p[c + k] * g1;
+					double g2 = he * gx;
+					double g3 = he * gy;
+					double g4 = g2 * dx * inverseSigmaX[k];
+					double g5 = g3 * dy * inverseSigmaY[k];
+					double residual = y[row + k] - (p[k] + he);
+					double wr = w * residual;
+
+					sumOfSquares[k] += wr * residual;
+
+					beta[k] += wr;
+					beta[c + k] += wr * g1;
+					beta[2 * c + k] += wr * g2;
+					beta[3 * c + k] += wr * g3;
+					beta[4 * c + k] += wr * g4;
+					beta[5 * c + k] += wr * g5;
+
+					alpha[k] += w;
+					alpha[c + k] += w * g1;
+					alpha[2 * c + k] += w * g1 * g1;
+					alpha[3 * c + k] += w * g2;
+					alpha[4 * c + k] += w * g2 * g1;
+					alpha[5 * c + k] += w * g2 * g2;
+					alpha[6 * c + k] += w * g3;
+					alpha[7 * c + k] += w * g3 * g1;
+					alpha[8 * c + k] += w * g3 * g2;
+					alpha[9 * c + k] += w * g3 * g3;
+					alpha[10 * c + k] += w * g4;
+					alpha[11 * c + k] += w * g4 * g1;
+					alpha[12 * c + k] += w * g4 * g2;
+					alpha[13 * c + k] += w * g4 * g3;
+					alpha[14 * c + k] += w * g4 * g4;
+					alpha[15 * c + k] += w * g5;
+					alpha[16 * c + k] += w * g5 * g1;
+					alpha[17 * c + k] += w * g5 * g2;
+					alpha[18 * c + k] += w * g5 * g3;
+					alpha[19 * c + k] += w * g5 * g4;
+					alpha[20 * c + k] += w * g5 * g5;
+				}
+
+			}
+
+		}
+
+	}
+
+	private void computeSumOfSquares(double[] p, double[] sumOfSquares) {
+
+		int c = capacity;
+
+		for (int k = 0; k < active; k++)
+			sumOfSquares[k] = 0;
+
+		computeInverseVariances(p, active);
+
+		for (int from = 0; from < active; from += BLOCK) {
+
+			int to = Math.min(from + BLOCK, active);
+
+			for (int point = 0; point < points; point++) {
+
+				int row = point * c;
+
+				computeExponentials(p, point % width, point / width, from, to);
+
+				for (int k = from; k < to; k++) {
+					double residual = y[row + k] - (p[k] + p[c + k] * e[k]);
+					sumOfSquares[k] += weight[row + k] * residual * residual;
+				}
+
+			}
+
+		}
+
+	}
+
+	// inverse variances of the first count problems
+	private void computeInverseVariances(double[] p, int count) {
+
+		int c = capacity;
+
+		for (int k = 0; k < count; k++) {
+			inverseSigmaX[k] = 1 / p[4 * c + k];
+			inverseSigmaY[k] = 1 / p[5 * c + k];
+			inverseVarianceX[k] = inverseSigmaX[k] * inverseSigmaX[k];
+			inverseVarianceY[k] = inverseSigmaY[k] * inverseSigmaY[k];
+		}
+
+	}
+
+	// exponentials of the gaussian at point (px, py) of the windows from .. to, kept apart from the arithmetic loops
+	private void computeExponentials(double[] p, int px, int py, int from, int to) {
+
+		int c = capacity;
+
+		for (int k = from; k < to; k++) {
+			double dx = originX[k] + px - p[2 * c + k];
+			double dy = originY[k] + py - p[3 * c + k];
+
+			e[k] = Math.exp(-0.5 * (dx * dx * inverseVarianceX[k] + dy * dy * inverseVarianceY[k]));
+		}
+
+	}
+
+	// projects the parameters of the problem at position k onto its bounds, returns true when a parameter was outside
+	private boolean project(double[] p, int k) {
+
+		boolean isProjected = false;
+
+		for (int j = 0; j < PARAMETERS; j++) {
+
+			int i = j * capacity + k;
+
+			if (p[i] < lowerBounds[i]) {
+				p[i] = lowerBounds[i];
+				isProjected = true;
+			}
+
+			if (p[i] > upperBounds[i]) {
+				p[i] = upperBounds[i];
+				isProjected = true;
+			}
+
+		}
+
+		return isProjected;
+	}
+
+	// moves the problem at position k out of the active range
+	private void retire(int k) {
+
+		int last = --active;
+
+		if (k != last)
+			swap(k, last);
+
+	}
+
+	// exchanges the problems at positions k and l
+	private void swap(int k, int l) {
+
+		for (int point = 0; point < points; point++) {
+			swap(y, point * capacity + k, point * capacity + l);
+			swap(weight, point * capacity + k, point * capacity + l);
+		}
+
+		for (int j = 0; j < PARAMETERS; j++) {
+			swap(p, j * capacity + k, j * capacity + l);
+			swap(beta, j * capacity + k, j * capacity + l);
+			swap(trial, j * capacity + k, j * capacity + l);
+			swap(lowerBounds, j * capacity + k, j * capacity + l);
+			swap(upperBounds, j * capacity + k, j * capacity + l);
+		}
+
+		for (int element = 0; element < ELEMENTS; element++)
+			swap(alpha, element * capacity + k, element * capacity + l);
+
+		swap(originX, k, l);
+		swap(originY, k, l);
+		swap(lambda, k, l);
+		swap(sumOfSquares, k, l);
+		swap(trialSumOfSquares, k, l);
+		swap(n, k, l);
+		swap(iterations, k, l);
+		swap(rejectedSteps, k, l);
+		swap(boundViolations, k, l);
+		swap(current, k, l);
+		swap(singular, k, l);
+		swap(termination, k, l);
+		swap(problem, k, l);
+
+		position[problem[k]] = k;
+		position[problem[l]] = l;
+	}
+
+	private static void swap(double[] a, int i, int j) {
+		double t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	private static void swap(boolean[] a, int i, int j) {
+		boolean t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	private static void swap(Object[] a, int i, int j) {
+		Object t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	/**
+	 * Copies the fitted parameters and their errors of a problem (in the order in which the problems were added).
+	 */
+	public void getResult(int index, double[] parameters, double[] errors) {
+
+		int k = position[index];
+
+		for (int j = 0; j < PARAMETERS; j++) {
+			parameters[j] = p[j * capacity + k];
+			errors[j] = error[index * PARAMETERS + j];
+		}
+
+	}
+
+	public int getIterations(int index) {
+		return iterations[position[index]];
+	}
+
+	public int getRejectedSteps(int index) {
+		return rejectedSteps[position[index]];
+	}
+
+	public LevenbergMarquardt.Termination getTermination(int index) {
+		return termination[position[index]];
+	}
+
+	public static void main(String[] args) {
+
+		// throughput of the batched fitter compared to the scalar fits of the peak fitter
+		int windows = 5000;
+		int size = 9;
+
+		Random random = new Random(1);
+		FloatProcessor ip = new FloatProcessor(size * windows, size);
+
+		for (int k = 0; k < windows; k++) {
+
+			double cx = size * k + size / 2 + random.nextDouble() - 0.5;
+			double cy = size / 2 + random.nextDouble() - 0.5;
+			double sigma = 1 + 0.5 * random.nextDouble();
+			double height = 500 + 1000 * random.nextDouble();
+
+			for (int y = 0; y < size; y++) {
+				for (int x = size * k; x < size * (k + 1); x++) {
+					double dx = x - cx;
+					double dy = y - cy;
+					double value = 100 + height * Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+
+					ip.setf(x, y, (float)(value + Math.sqrt(value) * random.nextGaussian()));
+				}
+			}
+
+		}
+
+		double[] initial = new double[PARAMETERS];
+		double[] lower = new double[PARAMETERS];
+		double[] upper = new double[PARAMETERS];
+		double[][] scalar = new double[windows][PARAMETERS];
+		double[][] scalarErrors = new double[windows][PARAMETERS];
+		double[] parameters = new double[PARAMETERS];
+		double[] errors = new double[PARAMETERS];
+
+		BatchedGaussianFitter batch = new BatchedGaussianFitter(size, size, windows);
+		batch.maxLambda = PeakFitter.MAX_LAMBDA;
+		batch.relativePrecision = PeakFitter.RELATIVE_PRECISION;
+
+		for (int repeat = 0; repeat < 5; repeat++) {
+
+			long beginTime = System.nanoTime();
+
+			for (int k = 0; k < windows; k++) {
+
+				for (int j = 0; j < PARAMETERS; j++)
+					scalar[k][j] = Double.NaN;
+
+				scalar[k][2] = size * k + size / 2;
+				scalar[k][3] = size / 2;
+
+				ip.setRoi(new Rectangle(size * k, 0, size, size));
+				PeakFitter.fitPeak(ip, scalar[k], scalarErrors[k]);
+			}
+
+			long scalarTime = System.nanoTime() - beginTime;
+
+			beginTime = System.nanoTime();
+			batch.clear();
+
+			for (int k = 0; k < windows; k++) {
+
+				for (int j = 0; j < PARAMETERS; j++)
+					initial[j] = Double.NaN;
+
+				initial[2] = size * k + size / 2;
+				initial[3] = size / 2;
+
+				PeakFitter.getBounds(new Rectangle(size * k, 0, size, size), lower, upper);
+				batch.add(ip, size * k, 0, initial, lower, upper);
+			}
+
+			batch.solve();
+
+			long batchTime = System.nanoTime() - beginTime;
+			double maxDeviation = 0;
+
+			for (int k = 0; k < windows; k++) {
+
+				batch.getResult(k, parameters, errors);
+
+				for (int j = 0; j < PARAMETERS; j++)
+					maxDeviation = Math.max(maxDeviation, Math.abs(Math.abs(parameters[j]) - Math.abs(scalar[k][j])) / scalarErrors[k][j]);
+			}
+
+			System.out.printf("scalar %d fits/s, batched %d fits/s, max deviation %g times the fitting error\n",
+					windows * 1000000000L / scalarTime, windows * 1000000000L / batchTime, maxDeviation);
+		}
+
+	}
+
+}
@@ -34,7 +34,14 @@ public class Colocalization implements PlugIn {
 					Double.NaN, Double.NaN, Double.NaN };
 			double[] e = new double[6];
 
-			PeakFitter.fitPeak(ip, p, e);
+			LevenbergMarquardt solver = PeakFitter.fitPeak(ip, p, e);
+
+			// a diverged fit has no corresponding point
+			if (solver.termination.isDivergent()) {
+				xpoints[i] = Double.NaN;
+				ypoints[i] = Double.NaN;
+				continue;
+			}
 
 			xpoints[i] = p[2];
 			ypoints[i] = p[3];
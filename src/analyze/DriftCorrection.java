@@ -67,9 +67,9 @@ public class DriftCorrection implements PlugInFilter, ActionListener {
 				
 				rois[selection].setPosition(0);	// make sure that this selection is global
 				ip.setRoi(rois[selection]);
-				PeakFitter.fitPeak(ip, p, e);
+				LevenbergMarquardt solver = PeakFitter.fitPeak(ip, p, e);
 				
-				boolean valid = true;
+				boolean valid = !solver.termination.isDivergent();
 				
 				for (int i = 0; i < e.length; i++) {
 					if (Double.isNaN(p[i]) || Double.isNaN(e[i]) || Math.abs(e[i]) > maxError[i])
@@ -94,8 +94,9 @@ public class DriftCorrection implements PlugInFilter, ActionListener {
 	private double polynomial(double x, double[] p) {
 		double value = 0;
 		
-		for (int i = 0; i < p.length; i++)
-			value += p[i] * Math.pow(x, i);
+		// horner's scheme
+		for (int i = p.length - 1; i >= 0; i--)
+			value = value * x + p[i];
 		
 		return value;
 	}
@@ -152,18 +153,22 @@ public class DriftCorrection implements PlugInFilter, ActionListener {
 				@Override
 				public void getGradient(double[] x, double[] p, double[] dyda) {
 					
-					for (int i = 0; i < p.length; i++)
-						dyda[i] = Math.pow(x[0], i);
+					double power = 1;
+					
+					for (int i = 0; i < p.length; i++) {
+						dyda[i] = power;
+						power *= x[0];
+					}
+				}
+				
+				@Override
+				public boolean isLinear() {
+					return true;
 				}
-
 
 			};
 			
-			for (int i = 0; i < degreeOfPolynomial; i++) {
-				xParameters[i] = 0.1 * Math.pow(0.1, i);
-				yParameters[i] = 0.1 * Math.pow(0.1, i);
-			}
-			
+			// the polynomial is linear in its parameters, so it is solved directly (without an initial guess)
 			lm.solve(xFit, xPositionsFit, null, n, xParameters, null, xError, 0.001);
 			lm.solve(xFit, yPositionsFit, null, n, yParameters, null, yError, 0.001);
 			
@@ -0,0 +1,231 @@
+package analyze;
+
+/**
+ * Dual number for forward mode automatic differentiation: a value together with its derivatives with
+ * respect to a fixed number of variables (the parameters of a fit).
+ *
+ * The operations change the number in place and return it, so an expression is written as a chain
+ * (e.g. result.set(x).sub(p[2]).div(p[3]).square()) and does not allocate any objects. Every operation
+ * applies the chain rule to all derivatives, so evaluating a model with duals costs about 1 + n times
+ * the arithmetic of the model for n variables, but the elementary functions (exp, log, ...) are
+ * evaluated only once.
+ */
+public final class Dual {
+
+	public double value;
+	public final double[] derivatives;
+
+	/**
+	 * Creates a dual number with derivatives with respect to n variables (n = 0 only keeps the value).
+	 */
+	public Dual(int n) {
+		derivatives = new double[n];
+	}
+
+	/**
+	 * Sets this number to the constant c.
+	 */
+	public Dual set(double c) {
+
+		value = c;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] = 0;
+
+		return this;
+	}
+
+	public Dual set(Dual a) {
+
+		value = a.value;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] = a.derivatives[i];
+
+		return this;
+	}
+
+	/**
+	 * Sets this number to variable i with the given value (the derivative with respect to itself is one).
+	 */
+	public Dual setVariable(double value, int i) {
+
+		set(value);
+
+		if (i < derivatives.length)
+			derivatives[i] = 1;
+
+		return this;
+	}
+
+	public Dual add(double c) {
+		value += c;
+		return this;
+	}
+
+	public Dual add(Dual a) {
+
+		value += a.value;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] += a.derivatives[i];
+
+		return this;
+	}
+
+	public Dual sub(double c) {
+		value -= c;
+		return this;
+	}
+
+	public Dual sub(Dual a) {
+
+		value -= a.value;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] -= a.derivatives[i];
+
+		return this;
+	}
+
+	/**
+	 * Sets this number to c - this.
+	 */
+	public Dual subFrom(double c) {
+
+		value = c - value;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] = -derivatives[i];
+
+		return this;
+	}
+
+	public Dual negate() {
+		return subFrom(0);
+	}
+
+	public Dual mul(double c) {
+
+		value *= c;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] *= c;
+
+		return this;
+	}
+
+	public Dual mul(Dual a) {
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] = derivatives[i] * a.value + value * a.derivatives[i];
+
+		value *= a.value;
+
+		return this;
+	}
+
+	public Dual div(double c) {
+		return mul(1 / c);
+	}
+
+	public Dual div(Dual a) {
+
+		double inverse = 1 / a.value;
+
+		value *= inverse;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] = (derivatives[i] - value * a.derivatives[i]) * inverse;
+
+		return this;
+	}
+
+	/**
+	 * Sets this number to c / this.
+	 */
+	public Dual divInto(double c) {
+
+		double inverse = 1 / value;
+
+		value = c * inverse;
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] *= -value * inverse;
+
+		return this;
+	}
+
+	public Dual square() {
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] *= 2 * value;
+
+		value *= value;
+
+		return this;
+	}
+
+	public Dual sqrt() {
+
+		value = Math.sqrt(value);
+
+		return chain(0.5 / value);
+	}
+
+	public Dual pow(double exponent) {
+
+		double power = Math.pow(value, exponent - 1);
+
+		chain(exponent * power);
+		value *= power;
+
+		return this;
+	}
+
+	public Dual exp() {
+
+		value = Math.exp(value);
+
+		return chain(value);
+	}
+
+	public Dual log() {
+
+		chain(1 / value);
+		value = Math.log(value);
+
+		return this;
+	}
+
+	public Dual sin() {
+
+		chain(Math.cos(value));
+		value = Math.sin(value);
+
+		return this;
+	}
+
+	public Dual cos() {
+
+		chain(-Math.sin(value));
+		value = Math.cos(value);
+
+		return this;
+	}
+
+	// multiplies the derivatives with the derivative of the outer function
+	private Dual chain(double derivative) {
+
+		for (int i = 0; i < derivatives.length; i++)
+			derivatives[i] *= derivative;
+
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return value + " " + java.util.Arrays.toString(derivatives);
+	}
+
+}
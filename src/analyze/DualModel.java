@@ -0,0 +1,221 @@
+package analyze;
+
+import java.util.Random;
+
+/**
+ * Model for {@link LevenbergMarquardt} that is defined once with {@link Dual} numbers; the gradient
+ * is obtained by forward mode automatic differentiation instead of central differences.
+ *
+ * A subclass implements {@link #compute(double[], Dual[], Dual)}. For the values only (e.g. when the
+ * solver checks a trial step) the model is computed with duals without derivatives, so it costs little
+ * more than a plain evaluation. Intermediate results that do not fit in a single chain can be stored in
+ * {@link #temporary(int)}, so a model does not allocate any memory.
+ */
+public abstract class DualModel extends LevenbergMarquardt {
+
+	// duals with derivatives (index 1) and without derivatives (index 0)
+	private Dual[][] parameters = new Dual[2][0];
+	private Dual[][] temporaries = new Dual[2][0];
+	private Dual[] results = new Dual[2];
+	private int mode = 0;
+
+	/**
+	 * Computes the value of the model at x for the parameters p (which should not be changed) and stores it in result.
+	 */
+	public abstract void compute(double[] x, Dual[] p, Dual result);
+
+	/**
+	 * Returns temporary number i, with the same variables as the parameters passed to compute.
+	 */
+	protected Dual temporary(int i) {
+
+		if (i >= temporaries[mode].length) {
+
+			Dual[] t = new Dual[i + 1];
+
+			for (int j = 0; j < t.length; j++)
+				t[j] = j < temporaries[mode].length ? temporaries[mode][j] : new Dual(results[mode].derivatives.length);
+
+			temporaries[mode] = t;
+		}
+
+		return temporaries[mode][i];
+	}
+
+	// sets the duals of the parameters, with derivatives when withDerivatives is true
+	private Dual[] seed(double[] p, boolean withDerivatives) {
+
+		mode = withDerivatives ? 1 : 0;
+
+		int n = withDerivatives ? p.length : 0;
+
+		if (parameters[mode].length != p.length) {
+
+			parameters[mode] = new Dual[p.length];
+
+			for (int i = 0; i < p.length; i++)
+				parameters[mode][i] = new Dual(n);
+
+			results[mode] = new Dual(n);
+			temporaries[mode] = new Dual[0];
+		}
+
+		for (int i = 0; i < p.length; i++)
+			parameters[mode][i].setVariable(p[i], i);
+
+		return parameters[mode];
+	}
+
+	@Override
+	public double getValue(double[] x, double[] p) {
+
+		Dual[] duals = seed(p, false);
+		Dual result = results[mode];
+
+		compute(x, duals, result);
+
+		return result.value;
+	}
+
+	@Override
+	public void getGradient(double[] x, double[] p, double[] dyda) {
+
+		Dual[] duals = seed(p, true);
+		Dual result = results[mode];
+
+		compute(x, duals, result);
+
+		for (int i = 0; i < p.length; i++)
+			dyda[i] = result.derivatives[i];
+	}
+
+	@Override
+	public void evaluate(double[][] x, int n, double[] p, double[] values, double[] jacobian) {
+
+		Dual[] duals = seed(p, jacobian != null);
+		Dual result = results[mode];
+
+		for (int i = 0; i < n; i++) {
+
+			compute(x[i], duals, result);
+
+			values[i] = result.value;
+
+			if (jacobian != null) {
+				for (int j = 0; j < p.length; j++)
+					jacobian[i * p.length + j] = result.derivatives[j];
+			}
+
+		}
+
+	}
+
+	public static void main(String[] args) {
+
+		// automatic differentiation against central differences for the gaussian
+		// p[0] + p[1] * exp(-(x - p[2])^2 / (2 * p[3]^2))
+		DualModel automatic = new DualModel() {
+
+			@Override
+			public void compute(double[] x, Dual[] p, Dual result) {
+				Dual d = temporary(0).set(x[0]).sub(p[2]).div(p[3]);
+				result.set(d).square().mul(-0.5).exp().mul(p[1]).add(p[0]);
+			}
+
+		};
+
+		LevenbergMarquardt differences = new LevenbergMarquardt() {
+
+			@Override
+			public double getValue(double[] x, double[] p) {
+				double d = (x[0] - p[2]) / p[3];
+				return p[0] + p[1] * Math.exp(-0.5 * d * d);
+			}
+
+			@Override
+			public void getGradient(double[] x, double[] p, double[] dyda) {
+
+				double delta = 1e-6;
+
+				for (int i = 0; i < p.length; i++) {
+					double pi = p[i];
+
+					p[i] = pi + delta;
+					dyda[i] = getValue(x, p);
+					p[i] = pi - delta;
+					dyda[i] -= getValue(x, p);
+					dyda[i] /= 2 * delta;
+					p[i] = pi;
+				}
+			}
+
+		};
+
+		int n = 1000;
+		double[][] x = new double[n][1];
+		double[] p = {100, 1000, 50, 10};
+		double[] values = new double[n];
+		double[] jacobian = new double[n * p.length];
+		double[] exact = new double[n * p.length];
+
+		for (int i = 0; i < n; i++)
+			x[i][0] = i * 0.1;
+
+		// analytic derivatives for the accuracy
+		for (int i = 0; i < n; i++) {
+			double d = (x[i][0] - p[2]) / p[3];
+			double e = Math.exp(-0.5 * d * d);
+
+			exact[i * 4] = 1;
+			exact[i * 4 + 1] = e;
+			exact[i * 4 + 2] = p[1] * e * d / p[3];
+			exact[i * 4 + 3] = p[1] * e * d * d / p[3];
+		}
+
+		for (LevenbergMarquardt model: new LevenbergMarquardt[] {differences, automatic}) {
+
+			long valuesTime = Long.MAX_VALUE;
+			long jacobianTime = Long.MAX_VALUE;
+
+			for (int repeat = 0; repeat < 2000; repeat++) {
+
+				long beginTime = System.nanoTime();
+				model.evaluate(x, n, p, values, null);
+				valuesTime = Math.min(valuesTime, System.nanoTime() - beginTime);
+
+				beginTime = System.nanoTime();
+				model.evaluate(x, n, p, values, jacobian);
+				jacobianTime = Math.min(jacobianTime, System.nanoTime() - beginTime);
+			}
+
+			double maxError = 0;
+
+			for (int i = 0; i < n * p.length; i++)
+				maxError = Math.max(maxError, Math.abs(jacobian[i] - exact[i]) / (Math.abs(exact[i]) + 1e-12));
+
+			System.out.printf("%s: values %dns, values and jacobian %dns (%.2f times), max relative error %g\n",
+					model == automatic ? "automatic" : "central differences", valuesTime, jacobianTime,
+					(double)jacobianTime / valuesTime, maxError);
+		}
+
+		// fit with both
+		Random random = new Random(1);
+		double[] y = new double[n];
+
+		for (int i = 0; i < n; i++)
+			y[i] = automatic.getValue(x[i], p) + 10 * random.nextGaussian();
+
+		for (LevenbergMarquardt model: new LevenbergMarquardt[] {differences, automatic}) {
+
+			double[] q = {90, 900, 48, 12};
+			double[] e = new double[4];
+
+			long beginTime = System.nanoTime();
+			model.solve(x, y, null, n, q, null, e, 0.001);
+
+			System.out.printf("fit %dns, %d iterations: %f %f %f %f\n", System.nanoTime() - beginTime, model.iterations, q[0], q[1], q[2], q[3]);
+		}
+
+	}
+
+}
@@ -0,0 +1,155 @@
+package analyze;
+
+/**
+ * Radix-2 fast Fourier transform of complex double arrays (in place).
+ */
+public final class FFT {
+
+	// cos and sin of 2 pi k / n for k < n / 2 of the largest transform so far, smaller transforms use every m-th value
+	private static double[][] twiddles = new double[][]{new double[0], new double[0]};
+
+	private FFT() {
+	}
+
+	/**
+	 * Returns the smallest power of two that is at least n.
+	 */
+	public static int size(int n) {
+
+		int size = 1;
+
+		while (size < n)
+			size <<= 1;
+
+		return size;
+	}
+
+	/**
+	 * Transforms the complex sequence (re, im) in place, the length has to be a power of two. The inverse transform
+	 * is scaled by 1 / length, so inverse(forward(x)) = x.
+	 */
+	public static void transform(double[] re, double[] im, boolean inverse) {
+
+		int n = re.length;
+
+		if (Integer.bitCount(n) != 1 || im.length != n)
+			throw new IllegalArgumentException("length has to be a power of two");
+
+		// bit reversal permutation
+		for (int i = 1, j = 0; i < n; i++) {
+
+			int bit = n >> 1;
+
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+
+			j ^= bit;
+
+			if (i < j) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+
+		}
+
+		double[][] twiddles = getTwiddles(n);
+		double[] cos = twiddles[0];
+		double[] sin = twiddles[1];
+		int stride = 2 * cos.length / n;
+		double sign = inverse ? 1 : -1;
+
+		for (int length = 2; length <= n; length <<= 1) {
+
+			int step = stride * n / length;
+			int middle = length >> 1;
+
+			for (int i = 0; i < n; i += length) {
+
+				for (int k = 0; k < middle; k++) {
+
+					double wr = cos[k * step];
+					double wi = sign * sin[k * step];
+					int a = i + k;
+					int b = a + middle;
+
+					double tr = re[b] * wr - im[b] * wi;
+					double ti = re[b] * wi + im[b] * wr;
+
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+
+			}
+
+		}
+
+		if (inverse) {
+
+			for (int i = 0; i < n; i++) {
+				re[i] /= n;
+				im[i] /= n;
+			}
+
+		}
+
+	}
+
+	/**
+	 * Transforms two real sequences a and b with one complex transform, in place. The transforms are stored in the
+	 * half complex format: the real part of coefficient k at k (k <= n / 2) and its imaginary part at n - k
+	 * (0 < k < n / 2). The other coefficients follow from the symmetry F[n - k] = conj(F[k]) of real sequences.
+	 */
+	public static void transformReal(double[] a, double[] b) {
+
+		int n = a.length;
+
+		transform(a, b, false);
+
+		// separate the transform of a + i b with the symmetry of the transforms of real sequences
+		for (int k = 0; k <= n / 2; k++) {
+
+			int j = (n - k) & (n - 1);
+			double zr = a[k];
+			double zi = b[k];
+			double wr = a[j];
+			double wi = b[j];
+
+			a[k] = (zr + wr) / 2;
+			b[k] = (zi + wi) / 2;
+
+			if (j != k) {
+				a[j] = (zi - wi) / 2;
+				b[j] = (wr - zr) / 2;
+			}
+
+		}
+
+	}
+
+	private static synchronized double[][] getTwiddles(int n) {
+
+		if (2 * twiddles[0].length >= n)
+			return twiddles;
+
+		int half = n >> 1;
+		double[] cos = new double[half];
+		double[] sin = new double[half];
+
+		for (int k = 0; k < half; k++) {
+			double angle = 2 * Math.PI * k / n;
+			cos[k] = Math.cos(angle);
+			sin[k] = Math.sin(angle);
+		}
+
+		twiddles = new double[][]{cos, sin};
+
+		return twiddles;
+	}
+
+}
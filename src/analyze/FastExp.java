@@ -0,0 +1,98 @@
+package analyze;
+
+/**
+ * Single precision approximation of the exponential function.
+ *
+ * The argument is reduced to x = (64 * k + j) * ln(2) / 64 + r with |r| <= ln(2) / 128, so that
+ * exp(x) = 2^k * 2^(j / 64) * exp(r). The powers 2^(j / 64) are read from a table and exp(r) is
+ * approximated by its third degree Taylor polynomial (truncation error below 4e-11).
+ *
+ * The ln(2) / 64 constant is split in a high part with an exact product and a low part (Cody-Waite),
+ * so the reduction does not lose precision for large arguments. The remaining error comes from the
+ * float arithmetic: the relative error is below 2e-7 (about two units in the last place) for the
+ * arguments between -87.3 and 88.7 (checked at 10^7 evenly spaced arguments in {@link #main}, not at every
+ * float). Smaller arguments return 0 (below the smallest normal float), larger arguments return infinity.
+ *
+ * On current JVMs Math.exp is an intrinsic and this is only about 1.3 times faster, the gain of the fast
+ * math fits comes mostly from tabulating the exponentials of a window (see {@link FastGaussian2D}).
+ */
+public final class FastExp {
+	
+	public static final double MAX_RELATIVE_ERROR = 2e-7;
+	
+	private static final int BITS = 6;
+	private static final int SIZE = 1 << BITS;
+	
+	private static final float LOG2E_SIZE = (float)(SIZE / Math.log(2));
+	private static final float LN2_SIZE_HI = (float)(Math.rint(Math.log(2) / SIZE * (1 << 17)) / (1 << 17));	// 11 bit mantissa, n * LN2_SIZE_HI is exact
+	private static final float LN2_SIZE_LO = (float)(Math.log(2) / SIZE - LN2_SIZE_HI);
+	
+	private static final float MIN_ARGUMENT = -87.3f;
+	private static final float MAX_ARGUMENT = 88.7f;
+	
+	private static final float[] TABLE = new float[SIZE];
+	
+	static {
+		for (int j = 0; j < SIZE; j++)
+			TABLE[j] = (float)Math.pow(2, j / (double)SIZE);
+	}
+	
+	private FastExp() {
+	}
+	
+	public static float exp(float x) {
+		
+		if (x < MIN_ARGUMENT)
+			return 0;
+			
+		if (x > MAX_ARGUMENT)
+			return Float.POSITIVE_INFINITY;
+			
+		float t = x * LOG2E_SIZE;
+		int n = (int)(t < 0 ? t - 0.5f : t + 0.5f);
+		float r = (x - n * LN2_SIZE_HI) - n * LN2_SIZE_LO;
+		
+		float p = 1 + r * (1 + r * (0.5f + r * (1f / 6)));
+		
+		return Float.intBitsToFloat(((n >> BITS) + 127) << 23) * TABLE[n & (SIZE - 1)] * p;
+	}
+	
+	public static void main(String[] args) {
+		
+		// verify the error bound at 10^7 evenly spaced arguments (a sample, not every float)
+		double maxError = 0;
+		double worstArgument = 0;
+		
+		for (int i = 0; i <= 10000000; i++) {
+			float x = MIN_ARGUMENT + (MAX_ARGUMENT - MIN_ARGUMENT) * i / 10000000f;
+			double exact = Math.exp(x);
+			double error = Math.abs(exp(x) - exact) / exact;
+			
+			if (error > maxError) {
+				maxError = error;
+				worstArgument = x;
+			}
+		}
+		
+		System.out.printf("max relative error %g at %f (bound %g)\n", maxError, worstArgument, MAX_RELATIVE_ERROR);
+		
+		// timing
+		double sum = 0;
+		long beginTime = System.nanoTime();
+		
+		for (int i = 0; i < 100000000; i++)
+			sum += exp(-i * 1e-6f);
+			
+		long fastTime = System.nanoTime() - beginTime;
+		double sumDouble = 0;
+		beginTime = System.nanoTime();
+		
+		for (int i = 0; i < 100000000; i++)
+			sumDouble += Math.exp(-i * 1e-6);
+			
+		long doubleTime = System.nanoTime() - beginTime;
+		
+		System.out.printf("FastExp.exp %dms, Math.exp %dms (%f, %f)\n", fastTime / 1000000, doubleTime / 1000000, sum, sumDouble);
+	}
+	
+}
@@ -0,0 +1,237 @@
+package analyze;
+
+import java.awt.Rectangle;
+
+/**
+ * Single precision kernel for the two dimensional gaussian of the peak fitter
+ * (p[0] + p[1] * exp(-((x - p[2])^2 / (2 * p[4]^2) + (y - p[3])^2 / (2 * p[5]^2)))).
+ *
+ * The gaussian is separable and all points lie on the pixel grid of the fit window, so for each set
+ * of parameters only one exponential per column and one per row of the window is evaluated (with
+ * {@link FastExp}). The value and gradient of a point are then a few float multiplications of the
+ * tabulated terms, {@link #evaluate(double[][], int, double[], double[], double[])} does this for the whole
+ * window in one loop.
+ *
+ * Error bounds: the tabulated exponentials have a relative error below 2e-7, the float products and
+ * quotients add at most a few units in the last place. The absolute error of the model value is
+ * below 1e-6 * |p[1]| + 1.2e-7 * |p[0]|. The relative error of each gradient component is below
+ * 1e-6 * (1 + a), where a is the (positive) exponent of the gaussian, so below 5.5e-6 within three
+ * sigma (as long as the gaussian term does not underflow, i.e. is above 1e-30).
+ * This is far below the shot noise of any camera pixel, but the fitted parameters are only reproduced
+ * to within a small fraction of their fitting error (see {@link PeakFitter} for the verification mode).
+ * The gain is small: a fit of a 9 x 9 window takes about 0.9 of the time of the double precision fit (most
+ * of the time is spent in the solver), so the double precision model remains the default.
+ *
+ * An instance keeps state and should not be shared between threads.
+ */
+public class FastGaussian2D extends LevenbergMarquardt {
+	
+	public static final double MAX_RELATIVE_ERROR = 1e-6;
+	public static final double RELATIVE_PRECISION = 1e-7;
+	
+	private int x0;
+	private int y0;
+	private int width;
+	private int height;
+	
+	private float[] expX = new float[0];
+	private float[] expY = new float[0];
+	private float[] gradientX = new float[0];	// (x - p[2]) / p[4]^2
+	private float[] gradientY = new float[0];
+	private float[] sigmaX = new float[0];		// (x - p[2])^2 / p[4]^3
+	private float[] sigmaY = new float[0];
+	
+	// parameters for which the tables are valid
+	private double x;
+	private double y;
+	private double sx;
+	private double sy;
+	private boolean isValid = false;
+	
+	public void setWindow(Rectangle window) {
+		
+		x0 = window.x;
+		y0 = window.y;
+		width = window.width;
+		height = window.height;
+		
+		if (expX.length < width) {
+			expX = new float[width];
+			gradientX = new float[width];
+			sigmaX = new float[width];
+		}
+		
+		if (expY.length < height) {
+			expY = new float[height];
+			gradientY = new float[height];
+			sigmaY = new float[height];
+		}
+		
+		isValid = false;
+	}
+	
+	@Override
+	public void solve(double[][] x, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda, SolverWorkspace workspace) {
+		
+		// the sum of squares of single precision model values fluctuates in the order of 1e-7 relative, so the
+		// improvement is (also) compared with the current sum of squares, the absolute precision may not be reached
+		double relative = relativePrecision;
+		relativePrecision = Math.max(relativePrecision, RELATIVE_PRECISION);
+		
+		super.solve(x, y, s, n, parameters, vary, error, lambda, workspace);
+		
+		relativePrecision = relative;
+	}
+	
+	private void updateTables(double[] p) {
+		
+		if (isValid && p[2] == x && p[3] == y && p[4] == sx && p[5] == sy)
+			return;
+			
+		x = p[2];
+		y = p[3];
+		sx = p[4];
+		sy = p[5];
+		
+		tabulate(x0, width, x, (float)sx, expX, gradientX, sigmaX);
+		tabulate(y0, height, y, (float)sy, expY, gradientY, sigmaY);
+		
+		isValid = true;
+	}
+	
+	private static void tabulate(int offset, int length, double center, float sigma, float[] exp, float[] gradient, float[] sigmaGradient) {
+		
+		float inverseVariance = 1 / (sigma * sigma);
+		
+		for (int i = 0; i < length; i++) {
+			float d = (float)((offset + i) - center);	// the center is only rounded after the subtraction
+			float dg = d * inverseVariance;
+			
+			exp[i] = FastExp.exp(-0.5f * d * dg);
+			gradient[i] = dg;
+			sigmaGradient[i] = d * dg / sigma;
+		}
+	}
+	
+	@Override
+	public double getValue(double[] x, double[] p) {
+		
+		updateTables(p);
+		
+		int i = (int)x[0] - x0;
+		int j = (int)x[1] - y0;
+		
+		return (float)p[0] + (float)p[1] * (expX[i] * expY[j]);
+	}
+	
+	@Override
+	public void getGradient(double[] x, double[] p, double[] dyda) {
+		
+		updateTables(p);
+		
+		int i = (int)x[0] - x0;
+		int j = (int)x[1] - y0;
+		
+		float e = expX[i] * expY[j];
+		float he = (float)p[1] * e;
+		
+		dyda[0] = 1;
+		dyda[1] = e;
+		dyda[2] = he * gradientX[i];
+		dyda[3] = he * gradientY[j];
+		dyda[4] = he * sigmaX[i];
+		dyda[5] = he * sigmaY[j];
+	}
+	
+	@Override
+	public void evaluate(double[][] x, int n, double[] p, double[] values, double[] jacobian) {
+		
+		updateTables(p);
+		
+		float baseline = (float)p[0];
+		float height = (float)p[1];
+		
+		for (int k = 0; k < n; k++) {
+			
+			int i = (int)x[k][0] - x0;
+			int j = (int)x[k][1] - y0;
+			
+			float e = expX[i] * expY[j];
+			float he = height * e;
+			
+			values[k] = baseline + he;
+			
+			if (jacobian != null) {
+				
+				int row = k * 6;
+				
+				jacobian[row] = 1;
+				jacobian[row + 1] = e;
+				jacobian[row + 2] = he * gradientX[i];
+				jacobian[row + 3] = he * gradientY[j];
+				jacobian[row + 4] = he * sigmaX[i];
+				jacobian[row + 5] = he * sigmaY[j];
+			}
+			
+		}
+		
+	}
+	
+	public static void main(String[] args) {
+		
+		// verify the error bounds against the double precision model
+		FastGaussian2D kernel = new FastGaussian2D();
+		kernel.setWindow(new Rectangle(96, 96, 9, 9));
+		
+		double[] x = new double[2];
+		double[] fast = new double[6];
+		double[] exact = new double[6];
+		double maxValueError = 0;
+		double maxGradientError = 0;
+		
+		java.util.Random random = new java.util.Random(1);
+		
+		for (int k = 0; k < 100000; k++) {
+			
+			double[] p = {
+					1000 * random.nextDouble(),
+					10000 * random.nextDouble(),
+					96 + 9 * random.nextDouble(),
+					96 + 9 * random.nextDouble(),
+					0.5 + 3 * random.nextDouble(),
+					0.5 + 3 * random.nextDouble()};
+					
+			for (int i = 0; i < 81; i++) {
+				x[0] = 96 + i % 9;
+				x[1] = 96 + i / 9;
+				
+				double dx = x[0] - p[2];
+				double dy = x[1] - p[3];
+				double a = (dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5]);
+				double e = Math.exp(-a);
+				
+				exact[0] = 1;
+				exact[1] = e;
+				exact[2] = (p[1] * e * dx) / (p[4] * p[4]);
+				exact[3] = (p[1] * e * dy) / (p[5] * p[5]);
+				exact[4] = (p[1] * e * dx * dx) / (p[4] * p[4] * p[4]);
+				exact[5] = (p[1] * e * dy * dy) / (p[5] * p[5] * p[5]);
+				
+				double valueError = Math.abs(kernel.getValue(x, p) - (p[0] + p[1] * e));
+				valueError /= 1e-6 * p[1] + 1.2e-7 * p[0];
+				maxValueError = Math.max(maxValueError, valueError);
+				
+				kernel.getGradient(x, p, fast);
+				
+				for (int j = 0; j < 6; j++) {
+					if (e > 1e-30 && exact[j] != 0)
+						maxGradientError = Math.max(maxGradientError, Math.abs(fast[j] - exact[j]) / (Math.abs(exact[j]) * (1 + a)));
+				}
+			}
+		}
+		
+		System.out.printf("value error / bound %f (should be below 1)\n", maxValueError);
+		System.out.printf("max relative gradient error / (1 + a) %g (bound %g)\n", maxGradientError, MAX_RELATIVE_ERROR);
+	}
+	
+}
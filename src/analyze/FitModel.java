@@ -0,0 +1,21 @@
+package analyze;
+
+/**
+ * Model that is evaluated for a whole dataset at once. Values and derivatives of all points are computed
+ * in one call, so a model can share expensive terms (e.g. the exponential of a gaussian) between the value
+ * and the derivatives and loop over the points without a virtual call per point.
+ *
+ * {@link LevenbergMarquardt} implements this interface by calling its getValue and getGradient methods for
+ * every point; a subclass can override {@link #evaluate(double[][], int, double[], double[], double[])} with
+ * a fused implementation.
+ */
+public interface FitModel {
+
+	/**
+	 * Evaluates the model at the first n points of x. The value at x[i] is stored in values[i]. When the
+	 * jacobian is not null, the derivative of the value at x[i] with respect to parameter j is stored in
+	 * jacobian[i * p.length + j] (row major, one row per point, a column for every parameter).
+	 */
+	public void evaluate(double[][] x, int n, double[] p, double[] values, double[] jacobian);
+
+}
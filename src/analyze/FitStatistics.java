@@ -0,0 +1,329 @@
+package analyze;
+
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Collects counters and histograms of the peak finding and fitting stages (number of candidates, fits,
+ * iterations, rejections by reason and nanoseconds per stage).
+ *
+ * Fits are recorded from many threads at the same time (slices are processed in parallel), so the totals
+ * and histograms are kept in striped counters: every thread mostly adds to its own cache line. The per slice
+ * counters are accumulated in a {@link Slice} that is only used by one thread and stored when the slice is done.
+ */
+public class FitStatistics {
+	
+	public static final int NOT_REJECTED = -1;
+	public static final String[] REJECTION_REASONS = {
+		"not_a_number",
+		"error_baseline",
+		"error_height",
+		"error_x",
+		"error_y",
+		"error_sigma_x",
+		"error_sigma_y",
+		"diverged"
+	};
+	
+	public enum Stage {
+		FILTER,
+		DETECTION,
+		FIT,
+		SLICE;
+		
+		public String getName() {
+			return toString().toLowerCase(Locale.US);
+		}
+	};
+	
+	private static final int STRIPES = 16;
+	private static final int PADDING = 16;	// longs, two cache lines between stripes
+	
+	private static int getStripe() {
+		long id = Thread.currentThread().getId();
+		return (int)(id ^ (id >>> 4)) & (STRIPES - 1);
+	}
+	
+	/**
+	 * Counter that is striped over several cache lines to avoid contention between threads.
+	 */
+	public static class Counter {
+		
+		private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+		
+		public void add(long value) {
+			cells.addAndGet(getStripe() * PADDING, value);
+		}
+		
+		public long get() {
+			long sum = 0;
+			
+			for (int i = 0; i < STRIPES; i++)
+				sum += cells.get(i * PADDING);
+				
+			return sum;
+		}
+		
+	}
+	
+	/**
+	 * Striped histogram with logarithmic bins. Bin 0 counts zero (and negative) values, bin b counts the values
+	 * from 2^(b - 1) up to 2^b.
+	 */
+	public static class Histogram {
+		
+		public static final int BINS = 64;
+		
+		private static final int STRIDE = BINS + PADDING;
+		
+		private AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+		private Counter sum = new Counter();
+		
+		public void record(long value) {
+			int bin = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+			
+			cells.incrementAndGet(getStripe() * STRIDE + Math.min(bin, BINS - 1));
+			sum.add(value);
+		}
+		
+		public long[] getCounts() {
+			long[] counts = new long[BINS];
+			
+			for (int i = 0; i < STRIPES; i++) {
+				for (int bin = 0; bin < BINS; bin++)
+					counts[bin] += cells.get(i * STRIDE + bin);
+			}
+			
+			return counts;
+		}
+		
+		public long getCount() {
+			long count = 0;
+			
+			for (long c: getCounts())
+				count += c;
+				
+			return count;
+		}
+		
+		public long getSum() {
+			return sum.get();
+		}
+		
+		public static long getLowerBound(int bin) {
+			return bin == 0 ? 0 : 1L << (bin - 1);
+		}
+		
+		public String toJson() {
+			
+			long[] counts = getCounts();
+			long count = 0;
+			StringBuilder bins = new StringBuilder();
+			
+			for (int bin = 0; bin < BINS; bin++) {
+				
+				if (counts[bin] > 0) {
+					
+					if (bins.length() > 0)
+						bins.append(", ");
+						
+					bins.append("{\"from\": ").append(getLowerBound(bin));
+					bins.append(", \"to\": ").append(bin == 0 ? 1 : getLowerBound(bin) * 2);
+					bins.append(", \"count\": ").append(counts[bin]).append("}");
+					
+					count += counts[bin];
+				}
+				
+			}
+			
+			long total = getSum();
+			
+			return "{\"count\": " + count + ", \"sum\": " + total + ", \"mean\": " + (count > 0 ? (double)total / count : 0)
+					+ ", \"bins\": [" + bins + "]}";
+		}
+		
+	}
+	
+	/**
+	 * Counters of one slice; only used by the thread that processes the slice.
+	 */
+	public static class Slice {
+		
+		private int slice;
+		private long beginTime;
+		
+		public long candidates;
+		public long fits;
+		public long accepted;
+		public long iterations;
+		public long rejectedSteps;
+		public long[] rejections = new long[REJECTION_REASONS.length];
+		public long[] nanoseconds = new long[Stage.values().length];
+		
+		private Slice(int slice) {
+			this.slice = slice;
+			beginTime = System.nanoTime();
+		}
+		
+		public int getSlice() {
+			return slice;
+		}
+		
+	}
+	
+	private Counter candidates = new Counter();
+	private Counter fits = new Counter();
+	private Counter accepted = new Counter();
+	private Counter[] rejections = new Counter[REJECTION_REASONS.length];
+	
+	private Histogram iterations = new Histogram();
+	private Histogram rejectedSteps = new Histogram();
+	private Histogram candidatesPerSlice = new Histogram();
+	private Histogram[] stages = new Histogram[Stage.values().length];
+	
+	private TreeMap<Integer, Slice> slices = new TreeMap<Integer, Slice>();
+	
+	public FitStatistics() {
+		
+		for (int i = 0; i < rejections.length; i++)
+			rejections[i] = new Counter();
+			
+		for (int i = 0; i < stages.length; i++)
+			stages[i] = new Histogram();
+			
+	}
+	
+	public Slice beginSlice(int slice) {
+		return new Slice(slice);
+	}
+	
+	public void recordStage(Slice slice, Stage stage, long nanoseconds) {
+		
+		stages[stage.ordinal()].record(nanoseconds);
+		
+		if (slice != null)
+			slice.nanoseconds[stage.ordinal()] += nanoseconds;
+	}
+	
+	public void recordCandidates(Slice slice, int n) {
+		
+		candidates.add(n);
+		candidatesPerSlice.record(n);
+		
+		slice.candidates += n;
+	}
+	
+	/**
+	 * Records a single fit.
+	 *
+	 * @param rejectionReason index in {@link #REJECTION_REASONS} or {@link #NOT_REJECTED}
+	 */
+	public void recordFit(Slice slice, LevenbergMarquardt lm, int rejectionReason, long nanoseconds) {
+		recordFit(slice, lm.iterations, lm.rejectedSteps, rejectionReason, nanoseconds);
+	}
+	
+	/**
+	 * Records a single fit that was not done by a {@link LevenbergMarquardt} instance (e.g. a fit of a
+	 * {@link BatchedGaussianFitter}, with the time of the batch divided over its fits).
+	 */
+	public void recordFit(Slice slice, int iterations, int rejectedSteps, int rejectionReason, long nanoseconds) {
+		
+		fits.add(1);
+		this.iterations.record(iterations);
+		this.rejectedSteps.record(rejectedSteps);
+		recordStage(slice, Stage.FIT, nanoseconds);
+		
+		slice.fits++;
+		slice.iterations += iterations;
+		slice.rejectedSteps += rejectedSteps;
+		
+		if (rejectionReason == NOT_REJECTED) {
+			accepted.add(1);
+			slice.accepted++;
+		}
+		else {
+			rejections[rejectionReason].add(1);
+			slice.rejections[rejectionReason]++;
+		}
+		
+	}
+	
+	public void endSlice(Slice slice) {
+		
+		recordStage(slice, Stage.SLICE, System.nanoTime() - slice.beginTime);
+		
+		synchronized (slices) {
+			slices.put(slice.slice, slice);
+		}
+		
+	}
+	
+	public ResultsTable toResultsTable() {
+		
+		ResultsTable table = new ResultsTable();
+		
+		synchronized (slices) {
+			
+			for (Slice slice: slices.values()) {
+				
+				table.incrementCounter();
+				table.addValue("slice", slice.slice);
+				table.addValue("candidates", slice.candidates);
+				table.addValue("fits", slice.fits);
+				table.addValue("accepted", slice.accepted);
+				table.addValue("iterations", slice.iterations);
+				table.addValue("mean_iterations", slice.fits > 0 ? (double)slice.iterations / slice.fits : 0);
+				table.addValue("rejected_steps", slice.rejectedSteps);
+				
+				for (int i = 0; i < REJECTION_REASONS.length; i++)
+					table.addValue("rejected_" + REJECTION_REASONS[i], slice.rejections[i]);
+					
+				for (Stage stage: Stage.values())
+					table.addValue(stage.getName() + "_ns", slice.nanoseconds[stage.ordinal()]);
+					
+			}
+			
+		}
+		
+		return table;
+	}
+	
+	public String toJson() {
+		
+		StringBuilder json = new StringBuilder();
+		
+		json.append("{\n");
+		
+		synchronized (slices) {
+			json.append("  \"slices\": ").append(slices.size()).append(",\n");
+		}
+		
+		json.append("  \"candidates\": ").append(candidates.get()).append(",\n");
+		json.append("  \"fits\": ").append(fits.get()).append(",\n");
+		json.append("  \"accepted\": ").append(accepted.get()).append(",\n");
+		json.append("  \"rejections\": {");
+		
+		for (int i = 0; i < REJECTION_REASONS.length; i++)
+			json.append(i > 0 ? ", " : "").append("\"").append(REJECTION_REASONS[i]).append("\": ").append(rejections[i].get());
+			
+		json.append("},\n");
+		json.append("  \"candidates_per_slice\": ").append(candidatesPerSlice.toJson()).append(",\n");
+		json.append("  \"iterations\": ").append(iterations.toJson()).append(",\n");
+		json.append("  \"rejected_steps\": ").append(rejectedSteps.toJson()).append(",\n");
+		json.append("  \"nanoseconds\": {\n");
+		
+		for (Stage stage: Stage.values()) {
+			json.append("    \"").append(stage.getName()).append("\": ").append(stages[stage.ordinal()].toJson());
+			json.append(stage.ordinal() < stages.length - 1 ? ",\n" : "\n");
+		}
+		
+		json.append("  }\n");
+		json.append("}");
+		
+		return json.toString();
+	}
+	
+}
@@ -0,0 +1,430 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ij.measure.ResultsTable;
+import util.ResultsTableColumns;
+import util.ResultsTableSorter;
+
+/**
+ * Second stage of the particle tracker: links the trajectories (segments) found by
+ * {@link ParticleTracker#link(ResultsTable, int, double)} into longer trajectories.
+ *
+ * The end of a segment can be linked to the start of a segment up to max gap slices later (gap closing), so
+ * blinking peaks can be bridged without a large look ahead in the first stage (where every slice of look ahead adds
+ * candidate links for every peak). Optionally the end of a segment can also be linked to a peak in the middle of
+ * another segment in the next slice (a merge) and the start of a segment to a peak in the middle of another segment
+ * in the previous slice (a split). As in Jaqaman et al. (Nature Methods 5, 2008) all these links are chosen at once
+ * with a linear assignment. Segments that are not linked (single peaks as well) are segments of their own.
+ *
+ * The costs are those of the first stage: a gap of n slices costs the squared distance divided by n (the
+ * displacement grows with the square root of the time for diffusion) plus max_step_size^2 for every skipped slice,
+ * within a distance of sqrt(n) * max_step_size. A merge or split costs the squared distance plus max_step_size^2,
+ * so gap closing is preferred over a merge or split at the same distance.
+ */
+public class GapClosing {
+
+	/**
+	 * Closes gaps of up to max gap slices between the trajectories in the table and fills the trajectory, step size
+	 * and trajectory length columns again (the table is sorted on slice). With merges and splits the merge (the
+	 * trajectory that the trajectory merges into) and split (the trajectory that it splits from) columns are added
+	 * for the last and first peaks of the trajectories, -1 otherwise.
+	 *
+	 * @return the number of trajectories
+	 */
+	public static int close(ResultsTable table, int maxGap, double maxStepSize, boolean mergesAndSplits) {
+
+		ResultsTableSorter.sort(table, true, "slice");
+
+		int rows = table.getCounter();
+		double[] xs = ResultsTableColumns.get(table, "x");
+		double[] ys = ResultsTableColumns.get(table, "y");
+		int[] slices = ResultsTableColumns.getInts(table, "slice");
+		int[] trajectories = ResultsTableColumns.getInts(table, "trajectory");
+		double[] stepSizes = ResultsTableColumns.get(table, "step_size", 0);
+		double[] dxs = ResultsTableColumns.get(table, "dx", 0);
+		double[] dys = ResultsTableColumns.get(table, "dy", 0);
+		double[] displacements = ResultsTableColumns.get(table, "displacement_sq", 0);
+
+		// segments: the trajectories (numbered without holes, e.g. after rows were removed) and the peaks that do not
+		// belong to a trajectory
+		int[] numbers = new int[rows];
+		int segmentCount = 0;
+
+		for (int row = 0; row < rows; row++) {
+			if (trajectories[row] >= 0)
+				numbers[segmentCount++] = trajectories[row];
+		}
+
+		Arrays.sort(numbers, 0, segmentCount);
+
+		int distinct = 0;
+
+		for (int i = 0; i < segmentCount; i++) {
+			if (i == 0 || numbers[i] != numbers[i - 1])
+				numbers[distinct++] = numbers[i];
+		}
+
+		segmentCount = distinct;
+
+		int[] segmentOfRow = new int[rows];
+
+		for (int row = 0; row < rows; row++)
+			segmentOfRow[row] = trajectories[row] >= 0 ? Arrays.binarySearch(numbers, 0, distinct, trajectories[row]) : segmentCount++;
+
+		int[] firstRow = new int[segmentCount];
+		int[] lastRow = new int[segmentCount];
+		int[] segmentLength = new int[segmentCount];
+
+		Arrays.fill(firstRow, -1);
+
+		for (int row = 0; row < rows; row++) {
+
+			int segment = segmentOfRow[row];
+
+			if (firstRow[segment] == -1)
+				firstRow[segment] = row;
+
+			lastRow[segment] = row;
+			segmentLength[segment]++;
+		}
+
+		// the starts and ends of the segments in the order of their slice, and the rows of every slice
+		int[] starts = new int[segmentCount];
+		int[] ends = new int[segmentCount];
+		int startCount = 0;
+		int endCount = 0;
+		ArrayList<Integer> offsets = new ArrayList<Integer>();
+
+		for (int row = 0; row < rows; row++) {
+
+			if (firstRow[segmentOfRow[row]] == row)
+				starts[startCount++] = row;
+
+			if (lastRow[segmentOfRow[row]] == row)
+				ends[endCount++] = row;
+
+			if (row == 0 || slices[row] != slices[row - 1])
+				offsets.add(row);
+		}
+
+		offsets.add(rows);
+
+		double[] startXs = new double[segmentCount];
+		double[] startYs = new double[segmentCount];
+
+		for (int i = 0; i < segmentCount; i++) {
+			startXs[i] = xs[starts[i]];
+			startYs[i] = ys[starts[i]];
+		}
+
+		// possible links: {row of the end (or the split), row of the start (or the merge), cost}
+		double maxStepSizeSq = maxStepSize * maxStepSize;
+		ArrayList<double[]> closings = new ArrayList<double[]>();
+		ArrayList<double[]> merges = new ArrayList<double[]>();
+		ArrayList<double[]> splits = new ArrayList<double[]>();
+		SpatialGrid grid = new SpatialGrid();
+
+		// gap closing: the starts of a slice are bucketed in a grid with cells of the largest step size
+		// (sqrt(maxGap + 1) * max_step_size), the ends maxGap + 1 to 2 slices earlier are compared with them
+		for (int from = 0, to = 0; from < segmentCount; from = to) {
+
+			while (to < segmentCount && slices[starts[to]] == slices[starts[from]])
+				to++;
+
+			int slice = slices[starts[from]];
+			grid.build(startXs, startYs, from, to, Math.sqrt(maxGap + 1) * maxStepSize);
+
+			for (int e = firstIndex(ends, endCount, slices, slice - maxGap - 1); e < endCount && slices[ends[e]] <= slice - 2; e++) {
+
+				int row1 = ends[e];
+				int gap = slice - slices[row1];
+				double x1 = xs[row1];
+				double y1 = ys[row1];
+				int column = grid.getColumn(x1);
+				int row = grid.getRow(y1);
+
+				for (int cy = row - 1; cy <= row + 1; cy++) {
+					for (int cx = column - 1; cx <= column + 1; cx++) {
+						for (int k = grid.getStart(cx, cy); k < grid.getEnd(cx, cy); k++) {
+
+							int row2 = starts[grid.get(k)];
+							double dx = xs[row2] - x1;
+							double dy = ys[row2] - y1;
+							double dsq = dx * dx + dy * dy;
+
+							if (dsq < gap * maxStepSizeSq)
+								closings.add(new double[]{row1, row2, dsq / gap + (gap - 1) * maxStepSizeSq});
+
+						}
+					}
+				}
+
+			}
+
+		}
+
+		// merges and splits: the peaks of a slice are bucketed in a grid, the ends of the previous slice and the
+		// starts of the next slice are compared with them
+		for (int i = 0; mergesAndSplits && i < offsets.size() - 1; i++) {
+
+			int from = offsets.get(i);
+			int to = offsets.get(i + 1);
+			int slice = slices[from];
+
+			grid.build(xs, ys, from, to, maxStepSize);
+
+			for (int e = firstIndex(ends, endCount, slices, slice - 1); e < endCount && slices[ends[e]] == slice - 1; e++)
+				findLinks(grid, xs, ys, ends[e], true, maxStepSizeSq, firstRow, segmentOfRow, merges);
+
+			for (int s = firstIndex(starts, startCount, slices, slice + 1); s < startCount && slices[starts[s]] == slice + 1; s++)
+				findLinks(grid, xs, ys, starts[s], false, maxStepSizeSq, lastRow, segmentOfRow, splits);
+
+		}
+
+		// assignment of the ends (and the peaks that split) to the starts (and the peaks that are merged into)
+		int[] endIndex = new int[rows];
+		int[] startIndex = new int[rows];
+		int[] splitRows = new int[splits.size()];
+		int[] mergeRows = new int[merges.size()];
+		int splitCount = 0;
+		int mergeCount = 0;
+
+		Arrays.fill(endIndex, -1);
+		Arrays.fill(startIndex, -1);
+
+		for (int i = 0; i < segmentCount; i++) {
+			endIndex[ends[i]] = i;
+			startIndex[starts[i]] = i;
+		}
+
+		LinearAssignment assignment = new LinearAssignment();
+
+		// (a peak can be linked once as the end of a merge and once as the start of a split)
+		int[] splitIndex = new int[rows];
+		int[] mergeIndex = new int[rows];
+
+		Arrays.fill(splitIndex, -1);
+		Arrays.fill(mergeIndex, -1);
+
+		for (double[] split: splits) {
+
+			int row = (int)split[0];
+
+			if (splitIndex[row] == -1) {
+				splitIndex[row] = segmentCount + splitCount;
+				splitRows[splitCount++] = row;
+			}
+
+		}
+
+		for (double[] merge: merges) {
+
+			int row = (int)merge[1];
+
+			if (mergeIndex[row] == -1) {
+				mergeIndex[row] = segmentCount + mergeCount;
+				mergeRows[mergeCount++] = row;
+			}
+
+		}
+
+		assignment.clear(segmentCount + splitCount, segmentCount + mergeCount);
+
+		for (double[] closing: closings)
+			assignment.add(endIndex[(int)closing[0]], startIndex[(int)closing[1]], closing[2]);
+
+		for (double[] merge: merges)
+			assignment.add(endIndex[(int)merge[0]], mergeIndex[(int)merge[1]], merge[2]);
+
+		for (double[] split: splits)
+			assignment.add(splitIndex[(int)split[0]], startIndex[(int)split[1]], split[2]);
+
+		int[] assigned = new int[segmentCount + splitCount];
+		assignment.solve((maxGap + 1) * maxStepSizeSq, (maxGap + 1) * maxStepSizeSq, assigned);
+
+		// the closed gaps chain the segments, the merges and splits are kept as pairs of rows
+		int[] next = new int[segmentCount];
+		boolean[] hasPrevious = new boolean[segmentCount];
+		boolean[] mergesOrSplits = new boolean[segmentCount];
+		ArrayList<int[]> links = new ArrayList<int[]>();
+
+		Arrays.fill(next, -1);
+
+		for (int i = 0; i < assigned.length; i++) {
+
+			int j = assigned[i];
+
+			if (j == -1)
+				continue;
+
+			int row1 = i < segmentCount ? ends[i] : splitRows[i - segmentCount];
+			int row2 = j < segmentCount ? starts[j] : mergeRows[j - segmentCount];
+
+			if (i < segmentCount && j < segmentCount) {
+
+				next[segmentOfRow[row1]] = segmentOfRow[row2];
+				hasPrevious[segmentOfRow[row2]] = true;
+
+				dxs[row2] = xs[row2] - xs[row1];
+				dys[row2] = ys[row2] - ys[row1];
+				displacements[row2] = dxs[row2] * dxs[row2] + dys[row2] * dys[row2];
+				stepSizes[row2] = Math.sqrt(displacements[row2]);
+			}
+			else {
+				mergesOrSplits[segmentOfRow[row1]] = true;
+				mergesOrSplits[segmentOfRow[row2]] = true;
+				links.add(new int[]{row1, row2, i < segmentCount ? 1 : 0});
+			}
+
+		}
+
+		// number the chains of segments in the order of their first peak, single peaks without a merge or split
+		// do not belong to a trajectory
+		int[] trajectoryOfSegment = new int[segmentCount];
+		int trajectoryCount = 0;
+
+		for (int i = 0; i < segmentCount; i++) {
+
+			int segment = segmentOfRow[starts[i]];
+
+			if (hasPrevious[segment])
+				continue;
+
+			int length = 0;
+			boolean isLinked = false;
+
+			for (int s = segment; s != -1; s = next[s]) {
+				length += segmentLength[s];
+				isLinked |= mergesOrSplits[s];
+			}
+
+			int trajectory = length > 1 || isLinked ? trajectoryCount++ : -1;
+
+			for (int s = segment; s != -1; s = next[s])
+				trajectoryOfSegment[s] = trajectory;
+
+		}
+
+		for (int row = 0; row < rows; row++)
+			trajectories[row] = trajectoryOfSegment[segmentOfRow[row]];
+
+		ParticleTracker.setColumns(table, trajectoryCount, trajectories, stepSizes, dxs, dys, displacements);
+
+		if (mergesAndSplits) {
+
+			int[] mergeColumn = new int[rows];
+			int[] splitColumn = new int[rows];
+
+			Arrays.fill(mergeColumn, -1);
+			Arrays.fill(splitColumn, -1);
+
+			for (int[] link: links) {
+
+				if (link[2] == 1)
+					mergeColumn[link[0]] = trajectories[link[1]];
+				else
+					splitColumn[link[1]] = trajectories[link[0]];
+
+			}
+
+			ResultsTableColumns.set(table, "merge", mergeColumn);
+			ResultsTableColumns.set(table, "split", splitColumn);
+		}
+
+		return trajectoryCount;
+	}
+
+	// finds the peaks in the grid within max step size of the end of a segment (merge) that are not the first peak of
+	// their segment, or of the start of a segment (split) that are not the last peak of their segment
+	private static void findLinks(SpatialGrid grid, double[] xs, double[] ys, int row1, boolean isMerge, double maxStepSizeSq, int[] excludedRows,
+			int[] segmentOfRow, ArrayList<double[]> links) {
+
+		double x1 = xs[row1];
+		double y1 = ys[row1];
+		int column = grid.getColumn(x1);
+		int row = grid.getRow(y1);
+
+		for (int cy = row - 1; cy <= row + 1; cy++) {
+			for (int cx = column - 1; cx <= column + 1; cx++) {
+				for (int k = grid.getStart(cx, cy); k < grid.getEnd(cx, cy); k++) {
+
+					int row2 = grid.get(k);
+					double dx = xs[row2] - x1;
+					double dy = ys[row2] - y1;
+					double dsq = dx * dx + dy * dy;
+
+					if (dsq < maxStepSizeSq && excludedRows[segmentOfRow[row2]] != row2) {
+
+						if (isMerge)
+							links.add(new double[]{row1, row2, dsq + maxStepSizeSq});
+						else
+							links.add(new double[]{row2, row1, dsq + maxStepSizeSq});
+
+					}
+
+				}
+			}
+		}
+
+	}
+
+	// first index in rows (sorted on slice) of a row in the given slice or later
+	private static int firstIndex(int[] rows, int count, int[] slices, int slice) {
+
+		int low = 0;
+		int high = count;
+
+		while (low < high) {
+
+			int middle = (low + high) >>> 1;
+
+			if (slices[rows[middle]] < slice)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	public static void main(String[] args) {
+
+		// trajectories 3, 7 and 100 (a filtered table): the end of 3 in slice 5 is closed to the start of 100 in slice
+		// 7, 7 is too far from both, and the single peak in slice 9 stays alone
+		double[][] peaks = new double[][]{
+				{3, 1, 10, 10}, {3, 5, 10.5, 10},
+				{7, 2, 50, 50}, {7, 4, 50, 51},
+				{100, 7, 11, 10}, {100, 8, 11.5, 10},
+				{-1, 9, 90, 90}};
+
+		ResultsTable table = new ResultsTable();
+
+		for (double[] peak: peaks) {
+			table.incrementCounter();
+			table.addValue("trajectory", peak[0]);
+			table.addValue("slice", peak[1]);
+			table.addValue("x", peak[2]);
+			table.addValue("y", peak[3]);
+		}
+
+		int count = close(table, 2, 1.5, false);
+		int[] slices = ResultsTableColumns.getInts(table, "slice");
+		int[] trajectories = ResultsTableColumns.getInts(table, "trajectory");
+		int[] expected = new int[10];
+
+		Arrays.fill(expected, -2);
+		expected[1] = expected[5] = expected[7] = expected[8] = 0;
+		expected[2] = expected[4] = 1;
+		expected[9] = -1;
+
+		boolean correct = count == 2 && table.getCounter() == peaks.length;
+
+		for (int row = 0; row < table.getCounter(); row++)
+			correct &= trajectories[row] == expected[slices[row]];
+
+		System.out.println(correct ? "ok" : "wrong trajectories: " + Arrays.toString(trajectories));
+	}
+
+}
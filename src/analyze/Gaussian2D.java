@@ -0,0 +1,68 @@
+package analyze;
+
+/**
+ * Two dimensional gaussian of the peak fitter
+ * (p[0] + p[1] * exp(-((x - p[2])^2 / (2 * p[4]^2) + (y - p[3])^2 / (2 * p[5]^2)))).
+ *
+ * {@link #evaluate(double[][], int, double[], double[], double[])} computes the exponential of each point
+ * once for the value and all derivatives.
+ */
+public class Gaussian2D extends LevenbergMarquardt {
+	
+	@Override
+	public double getValue(double[] x, double[] p) {
+		
+		double dx = x[0] - p[2];
+		double dy = x[1] - p[3];
+		
+		return p[0] + p[1] * Math.exp(-((dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5])));
+	}
+	
+	@Override
+	public void getGradient(double[] x, double[] p, double[] dyda) {
+		
+		double dx = x[0] - p[2];
+		double dy = x[1] - p[3];
+		
+		dyda[0] = 1;
+		dyda[1] = Math.exp(-((dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5])));
+		dyda[2] = (p[1] * dyda[1] * dx) / (p[4] * p[4]);
+		dyda[3] = (p[1] * dyda[1] * dy) / (p[5] * p[5]);
+		dyda[4] = (p[1] * dyda[1] * dx * dx) / (p[4] * p[4] * p[4]);
+		dyda[5] = (p[1] * dyda[1] * dy * dy) / (p[5] * p[5] * p[5]);
+	}
+	
+	@Override
+	public void evaluate(double[][] x, int n, double[] p, double[] values, double[] jacobian) {
+		
+		double inverseVarianceX = 1 / (p[4] * p[4]);
+		double inverseVarianceY = 1 / (p[5] * p[5]);
+		
+		for (int i = 0; i < n; i++) {
+			
+			double dx = x[i][0] - p[2];
+			double dy = x[i][1] - p[3];
+			double gx = dx * inverseVarianceX;
+			double gy = dy * inverseVarianceY;
+			double e = Math.exp(-0.5 * (dx * gx + dy * gy));
+			double he = p[1] * e;
+			
+			values[i] = p[0] + he;
+			
+			if (jacobian != null) {
+				
+				int row = i * 6;
+				
+				jacobian[row] = 1;
+				jacobian[row + 1] = e;
+				jacobian[row + 2] = he * gx;
+				jacobian[row + 3] = he * gy;
+				jacobian[row + 4] = he * dx * gx / p[4];
+				jacobian[row + 5] = he * dy * gy / p[5];
+			}
+			
+		}
+		
+	}
+	
+}
@@ -6,171 +6,385 @@ package analyze;
  * @author C.M. Punter
  *
  */
-public abstract class LevenbergMarquardt {
+public abstract class LevenbergMarquardt implements FitModel {
+	
+	/**
+	 * Method used to solve the (damped) normal equations. The normal matrix is symmetric positive definite,
+	 * so the LDL^T (Cholesky) factorization needs about half the operations of Gauss-Jordan elimination and
+	 * detects a loss of positive definiteness. Gauss-Jordan is kept for comparison.
+	 */
+	public enum Solver {
+		CHOLESKY,
+		GAUSS_JORDAN
+	};
+	
+	/**
+	 * Update of the damping factor after a step. MARQUARDT divides lambda by 10 after an accepted step and multiplies
+	 * it by 10 after a rejected step. NIELSEN scales lambda with the ratio of the actual and the predicted reduction of
+	 * the sum of squares and doubles the increase after every successive rejection. DELAYED_GRATIFICATION divides lambda
+	 * by 3 and multiplies it by 2, so the damping decreases slowly and fewer steps are rejected on curved problems.
+	 */
+	public enum Damping {
+		MARQUARDT,
+		NIELSEN,
+		DELAYED_GRATIFICATION
+	};
+	
+	/**
+	 * Reason why the last fit stopped. A converged fit stopped because the change of the sum of squares
+	 * (CONVERGED), the gradient (SMALL_GRADIENT) or the step (SMALL_STEP) became smaller than its tolerance.
+	 * A divergent fit stopped early because its parameters kept leaving the bounds or because the damping
+	 * factor exceeded {@link LevenbergMarquardt#maxLambda}.
+	 */
+	public enum Termination {
+		CONVERGED,
+		SMALL_GRADIENT,
+		SMALL_STEP,
+		MAX_ITERATIONS,
+		SINGULAR,
+		LAMBDA_EXPLODED,
+		BOUNDS_VIOLATED;
+		
+		public boolean isConverged() {
+			return this == CONVERGED || this == SMALL_GRADIENT || this == SMALL_STEP;
+		}
+		
+		public boolean isDivergent() {
+			return this == LAMBDA_EXPLODED || this == BOUNDS_VIOLATED;
+		}
+	};
 
-	public static int maxIterations = 100;
+	public static final int DEFAULT_MAX_ITERATIONS = 100;
+	
 	public int iterations;
+	public int rejectedSteps;
 	public double sumOfSquares = 0;
-	public double precision = 1e-6;
 	public double rSquared = 0;
+	public Termination termination;
+	
+	// configuration of this instance, a value of 0 disables a tolerance
+	public int maxIterations = DEFAULT_MAX_ITERATIONS;
+	public double precision = 1e-6;				// absolute change of the sum of squares
+	public double relativePrecision = 0;		// change of the sum of squares relative to the sum of squares
+	public double gradientTolerance = 0;		// largest component of the gradient (J^T * r)
+	public double stepTolerance = 0;			// norm of an accepted step relative to the norm of the parameters
+	public Solver solver = Solver.CHOLESKY;
+	public Damping damping = Damping.MARQUARDT;
+	
+	// geodesic acceleration: a second order correction of each step along the curvature of the model, a step is
+	// rejected when the (scaled) acceleration is larger than maxAccelerationRatio / 2 times the velocity
+	public boolean useGeodesicAcceleration = false;
+	public double maxAccelerationRatio = 0.75;
+	
+	private static final double GEODESIC_STEP = 0.1;	// relative step of the finite difference of the curvature
+	
+	// box constraints (null when a parameter has no bounds), steps are projected onto the box
+	public double[] lowerBounds = null;
+	public double[] upperBounds = null;
+	
+	// divergence detection: the number of successive rejected steps that were clamped to the bounds and the largest
+	// damping factor
+	public int maxBoundViolations = 3;
+	public double maxLambda = Double.POSITIVE_INFINITY;
+	
+	private double[] pointGradient = new double[0];	// used by the point wise evaluation
 	
 	public void solve(double[][] x, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda) {
+		solve(x, y, s, n, parameters, vary, error, lambda, new SolverWorkspace(parameters.length));
+	}
+	
+	/**
+	 * Solves using the preallocated arrays of the workspace, so repeated fits do not allocate any memory.
+	 * A workspace can only be used by one thread at a time (see {@link SolverWorkspace#forCurrentThread(int)}).
+	 */
+	public void solve(double[][] x, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda, SolverWorkspace workspace) {
+		
+		if (parameters.length > workspace.getMaxParameters())
+			throw new IllegalArgumentException("workspace supports at most " + workspace.getMaxParameters() + " parameters");
+		
+		workspace.ensureCapacity(n);
 		
-		// determine the number of parameters that can vary
-		int numberOfParameters = 0;
+		// determine the parameters that can vary
+		int[] varying = workspace.varying;
+		int m = 0;
 		
 		for (int i = 0; i < parameters.length; i++) {
 			if (vary == null || vary[i])
-				numberOfParameters++;
+				varying[m++] = i;
 		}
 		
-		double[][] alpha = new double[numberOfParameters][numberOfParameters];
-		double[][] beta = new double[numberOfParameters][1];
-		double[] dyda = new double[parameters.length];
-		double[] newParameters = new double[parameters.length];
+		// flat arrays (row major, m x m)
+		double[] alpha = workspace.alpha;
+		double[] beta = workspace.beta;
+		double[] newParameters = workspace.newParameters;
+		double[] covar = workspace.covar;
+		double[] values = workspace.values;
+		double[] trialValues = workspace.trialValues;
+		
+		double[] normal = workspace.normal;
+		double[] gradient = workspace.gradient;
 		
 		double sumOfSquaresBefore = 0;
 		double sumOfSquaresAfter = 0;
 		
+		// whether normal, gradient and sumOfSquaresBefore belong to the current parameters
+		boolean isCurrent = false;
+		int boundViolations = 0;
+		double nu = 2;	// increase of lambda after a rejected step (Nielsen)
+		
+		rejectedSteps = 0;
+		termination = Termination.MAX_ITERATIONS;
+		
+		if (isLinear() && lowerBounds == null && upperBounds == null) {
+			solveLinear(x, y, s, n, parameters, m, error, workspace);
+			return;
+		}
+		
+		project(parameters);
+		
 		for (iterations = 1; iterations <= maxIterations; iterations++) {
 			
-			// initialize matrices
-			for (int i = 0; i < numberOfParameters; i++) {
-				for (int j = 0; j < numberOfParameters; j++)
-					alpha[i][j] = 0;
-				beta[i][0] = 0;
+			// determine initial sum of squares and the normal equations, after a rejected step
+			// the parameters did not change and only the damping has to be applied again
+			if (!isCurrent) {
+				evaluate(x, n, parameters, values, workspace.jacobian);
+				sumOfSquaresBefore = computeNormalEquations(y, s, n, parameters.length, m, workspace);
+				isCurrent = true;
+				
+				if (gradientTolerance > 0 && getMaxAbs(gradient, m) <= gradientTolerance) {
+					sumOfSquaresAfter = sumOfSquaresBefore;
+					termination = Termination.SMALL_GRADIENT;
+					break;
+				}
 			}
 			
-			// determine initial sum of squares
-			sumOfSquaresBefore = 0;
+			for (int i = 0; i < m * m; i++)
+				alpha[i] = normal[i];
 			
-			for (int i = 0; i < n; i++) {
-				
-				double residual = (y[i] - getValue(x[i], parameters));
-				
-				if (s != null && s[i] != 0)
-					residual /= s[i];
-				
-				sumOfSquaresBefore += residual * residual;
+			for (int i = 0; i < m; i++)
+				beta[i] = gradient[i];
+			
+			// include damping factor
+			for (int i = 0; i < m; i++)
+				alpha[i * m + i] *= 1 + lambda;
+			
+			if (!solveNormalEquations(alpha, beta, m)) {
 				
-				getGradient(x[i], parameters, dyda);
+				// not positive definite, a larger damping makes the diagonal dominant unless the matrix is singular
+				sumOfSquaresAfter = sumOfSquaresBefore;
+				rejectedSteps++;
+				lambda = increaseLambda(lambda, nu);
+				nu *= 2;
 				
-				for (int j = 0, k = 0; j < parameters.length; j++) {
-					if (vary == null || vary[j])
-						dyda[k++] = dyda[j];
-				}
-				
-				for (int j = 0; j < numberOfParameters; j++) {
-					
-					if (s != null && s[i] != 0)
-						dyda[j] /= s[i];
-					
-					for (int k = 0; k <= j; k++)
-						alpha[j][k] += dyda[j] * dyda[k];
-					
-					beta[j][0] += dyda[j] * residual;
+				if (lambda > maxLambda || Double.isInfinite(lambda)) {
+					termination = Termination.SINGULAR;
+					break;
 				}
 				
+				continue;
 			}
 			
-			// fill in symmetric side
-			for (int i = 0; i < numberOfParameters; i++) {
-				for (int j = i + 1; j < numberOfParameters; j++)
-					alpha[i][j] = alpha[j][i];
-			}
-			
-			// include damping factor
-			for (int i = 0; i < numberOfParameters; i++)
-				alpha[i][i] *= 1 + lambda;
+			// reduction of the sum of squares predicted by the linear model: v^T * (g + lambda * D * v)
+			double predictedReduction = 0;
 			
-			gaussJordan(alpha, beta);
+			for (int j = 0; j < m; j++)
+				predictedReduction += beta[j] * (gradient[j] + lambda * normal[j * m + j] * beta[j]);
 			
-			// determine new sum of squares
-			sumOfSquaresAfter = 0;
-			
-			for (int i = 0, j = 0; i < parameters.length; i++) {
-				
-				newParameters[i] = parameters[i];
+			if (useGeodesicAcceleration && !accelerate(x, s, n, parameters, m, lambda, workspace)) {
 				
-				if (vary == null || vary[i])
-					newParameters[i] += beta[j++][0];
-			}
-			
-			for (int i = 0; i < n; i++) {
-				double residual = (y[i] - getValue(x[i], newParameters));
+				// the step is too far from the linear approximation
+				sumOfSquaresAfter = sumOfSquaresBefore;
+				rejectedSteps++;
+				lambda = increaseLambda(lambda, nu);
+				nu *= 2;
 				
-				if (s != null && s[i] != 0)
-					residual /= s[i];
+				if (lambda > maxLambda) {
+					termination = Termination.LAMBDA_EXPLODED;
+					break;
+				}
 				
-				sumOfSquaresAfter += residual * residual;
+				continue;
 			}
 			
+			// determine new sum of squares
+			for (int i = 0; i < parameters.length; i++)
+				newParameters[i] = parameters[i];
+			
+			for (int j = 0; j < m; j++)
+				newParameters[varying[j]] += beta[j];
+			
+			// the step is clamped to the bounds, this only counts as a violation when the clamped step is rejected
+			if (project(newParameters))
+				boundViolations++;
+			else
+				boundViolations = 0;
+			
+			evaluate(x, n, newParameters, trialValues, null);
+			sumOfSquaresAfter = computeSumOfSquares(y, s, n, trialValues);
+			
 			double improvement = Math.abs(sumOfSquaresAfter - sumOfSquaresBefore);
+			boolean isSmallStep = false;
 			
 			if (sumOfSquaresAfter < sumOfSquaresBefore) {
 				
+				// only accepted steps are compared, a rejected step is small because of the damping
+				if (stepTolerance > 0) {
+					
+					double step = 0;
+					double norm = 0;
+					
+					for (int j = 0; j < m; j++) {
+						step += (newParameters[varying[j]] - parameters[varying[j]]) * (newParameters[varying[j]] - parameters[varying[j]]);
+						norm += parameters[varying[j]] * parameters[varying[j]];
+					}
+					
+					isSmallStep = Math.sqrt(step) <= stepTolerance * (Math.sqrt(norm) + stepTolerance);
+				}
+				
 				for (int i = 0; i < parameters.length; i++)
 					parameters[i] = newParameters[i];
 				
-				lambda /= 10;
+				lambda = decreaseLambda(lambda, (sumOfSquaresBefore - sumOfSquaresAfter) / predictedReduction);
+				nu = 2;
+				isCurrent = false;
+				boundViolations = 0;
 			}
 			else {
 				sumOfSquaresAfter = sumOfSquaresBefore;
-				lambda *= 10;
+				lambda = increaseLambda(lambda, nu);
+				nu *= 2;
+				rejectedSteps++;
 			}
 			
-			if (improvement < precision)	// stop condition
+			// stop conditions
+			if (improvement < precision || improvement < relativePrecision * sumOfSquaresBefore) {
+				termination = Termination.CONVERGED;
 				break;
+			}
+			
+			if (isSmallStep) {
+				termination = Termination.SMALL_STEP;
+				break;
+			}
+			
+			if (lambda > maxLambda) {
+				termination = Termination.LAMBDA_EXPLODED;
+				break;
+			}
+			
+			if (boundViolations >= maxBoundViolations) {
+				termination = Termination.BOUNDS_VIOLATED;
+				break;
+			}
 		}
 		
-		double[][] covar = new double[numberOfParameters][numberOfParameters];
+		// determine alpha at the solution and set covar to the identity matrix
+		if (!isCurrent) {
+			evaluate(x, n, parameters, values, workspace.jacobian);
+			computeNormalEquations(y, s, n, parameters.length, m, workspace);
+		}
 		
-		// initialize alpha matrix
-		for (int i = 0; i < numberOfParameters; i++) {
-			for (int j = 0; j < numberOfParameters; j++)
-				alpha[i][j] = 0;
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++) {
+				alpha[i * m + j] = normal[i * m + j];
+				covar[i * m + j] = 0;
+			}
 			
-			covar[i][i] = 1;	// covar matrix is set to identity matrix
+			covar[i * m + i] = 1;
 		}
 		
-		// determine alpha
-		for (int i = 0; i < n; i++) {
+		// invert alpha
+		boolean isInvertible = true;
+		
+		if (solver == Solver.CHOLESKY) {
 			
-			getGradient(x[i], parameters, dyda);
+			isInvertible = decompose(alpha, m);
 			
-			for (int j = 0, k = 0; j < parameters.length; j++) {
-				if (vary == null || vary[j])
-					dyda[k++] = dyda[j];
-			}
+			// solve for each column of the identity matrix
+			for (int j = 0; isInvertible && j < m; j++)
+				substitute(alpha, m, covar, j, m);
 			
-			for (int j = 0; j < numberOfParameters; j++) {
-				
-				if (s != null && s[i] != 0)
-					dyda[j] /= s[i];
-				
-				for (int k = 0; k <= j; k++)
-					alpha[j][k] += dyda[j] * dyda[k];
+		}
+		else {
+			gaussJordan(alpha, covar, m, m);
+		}
+		
+		for (int i = 0; i < parameters.length; i++)
+			error[i] = 0;
+		
+		for (int j = 0; j < m; j++)
+			error[varying[j]] = isInvertible ? Math.sqrt(covar[j * m + j] * sumOfSquaresAfter / (n - m)) : Double.NaN;
+		
+		computeRSquared(y, s, n, m, sumOfSquaresAfter);
+	}
+	
+	/**
+	 * Whether the model is linear in its parameters, i.e. the value is a sum of the parameters times functions of x
+	 * (plus a term that does not depend on the parameters). A linear model without bounds is solved in one pass with
+	 * {@link LinearLeastSquares} instead of iteratively; the initial parameters and lambda are not used.
+	 */
+	public boolean isLinear() {
+		return false;
+	}
+	
+	// direct solution of a linear model: the jacobian does not depend on the parameters, so a single evaluation gives
+	// the design matrix and the residuals of the fixed parameters
+	private void solveLinear(double[][] x, double[] y, double[] s, int n, double[] parameters, int m, double[] error, SolverWorkspace workspace) {
+		
+		double[] values = workspace.values;
+		double[] jacobian = workspace.jacobian;
+		double[] b = workspace.trialValues;
+		double[] covar = workspace.covar;
+		int[] varying = workspace.varying;
+		int columns = parameters.length;
+		
+		evaluate(x, n, parameters, values, jacobian);
+		
+		// weighted design matrix of the varying parameters (compacted in place to n x m) and right hand side
+		// y - (value of the fixed parameters)
+		for (int i = 0; i < n; i++) {
+			
+			double weight = s != null && s[i] != 0 ? 1 / s[i] : 1;
+			double rhs = y[i] - values[i];
+			
+			for (int j = 0; j < m; j++) {
+				double a = jacobian[i * columns + varying[j]];
+				rhs += a * parameters[varying[j]];
+				jacobian[i * m + j] = a * weight;
 			}
 			
+			b[i] = rhs * weight;
 		}
 		
-		// fill in symmetric side
-		for (int i = 0; i < numberOfParameters; i++) {
-			for (int j = i + 1; j < numberOfParameters; j++)
-				alpha[i][j] = alpha[j][i];
+		double sumOfSquaresAfter = LinearLeastSquares.solve(jacobian, n, m, b, covar);
+		
+		iterations = 1;
+		termination = Double.isNaN(sumOfSquaresAfter) ? Termination.SINGULAR : Termination.CONVERGED;
+		
+		for (int i = 0; i < parameters.length; i++)
+			error[i] = 0;
+		
+		if (termination == Termination.SINGULAR) {
+			
+			for (int j = 0; j < m; j++)
+				error[varying[j]] = Double.NaN;
+			
+			sumOfSquares = Double.NaN;
+			rSquared = Double.NaN;
+			return;
 		}
 		
-		// invert alpha
-		gaussJordan(alpha, covar);
-
-		for (int i = 0, j = 0; i < parameters.length; i++) {
-			if (vary == null || vary[i])
-				error[i] = Math.sqrt(covar[j][j++] * sumOfSquaresAfter / (n - numberOfParameters));
-			else
-				error[i] = 0;
+		for (int j = 0; j < m; j++) {
+			parameters[varying[j]] = b[j];
+			error[varying[j]] = Math.sqrt(covar[j * m + j] * sumOfSquaresAfter / (n - m));
 		}
 		
-		// calculating R^2
+		computeRSquared(y, s, n, m, sumOfSquaresAfter);
+	}
+	
+	// sets the (weighted) sum of squares and R^2 of a fit
+	private void computeRSquared(double[] y, double[] s, int n, int m, double sumOfSquaresAfter) {
+		
 		double mean = 0;
 		double w = 0;
 		
@@ -190,10 +404,371 @@ public abstract class LevenbergMarquardt {
 			sst += (deviation * deviation) / ssq;
 		}
 		
-		rSquared = 1 - (sumOfSquaresAfter / (n - numberOfParameters)) / (sst / (n - 1));
+		rSquared = 1 - (sumOfSquaresAfter / (n - m)) / (sst / (n - 1));
 		sumOfSquares = sumOfSquaresAfter;
 	}
 	
+	/**
+	 * Determines the undamped normal matrix (J^T * J) and gradient (J^T * r) of the varying parameters from the
+	 * model values and jacobian in the workspace, returns the (weighted) sum of squares. The symmetric side of
+	 * the normal matrix is filled in as well.
+	 */
+	private double computeNormalEquations(double[] y, double[] s, int n, int columns, int m, SolverWorkspace workspace) {
+		
+		double[] alpha = workspace.normal;
+		double[] beta = workspace.gradient;
+		double[] dyda = workspace.dyda;
+		double[] values = workspace.values;
+		double[] jacobian = workspace.jacobian;
+		int[] varying = workspace.varying;
+		
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++)
+				alpha[i * m + j] = 0;
+			beta[i] = 0;
+		}
+		
+		double sumOfSquares = 0;
+		
+		for (int i = 0; i < n; i++) {
+			
+			double residual = y[i] - values[i];
+			boolean isWeighted = s != null && s[i] != 0;
+			
+			if (isWeighted)
+				residual /= s[i];
+			
+			sumOfSquares += residual * residual;
+			
+			int row = i * columns;
+			
+			for (int j = 0; j < m; j++) {
+				
+				dyda[j] = jacobian[row + varying[j]];
+				
+				if (isWeighted)
+					dyda[j] /= s[i];
+				
+				for (int k = 0; k <= j; k++)
+					alpha[j * m + k] += dyda[j] * dyda[k];
+				
+				beta[j] += dyda[j] * residual;
+			}
+			
+		}
+		
+		// fill in symmetric side
+		for (int i = 0; i < m; i++) {
+			for (int j = i + 1; j < m; j++)
+				alpha[i * m + j] = alpha[j * m + i];
+		}
+		
+		return sumOfSquares;
+	}
+	
+	private static double computeSumOfSquares(double[] y, double[] s, int n, double[] values) {
+		
+		double sumOfSquares = 0;
+		
+		for (int i = 0; i < n; i++) {
+			double residual = y[i] - values[i];
+			
+			if (s != null && s[i] != 0)
+				residual /= s[i];
+			
+			sumOfSquares += residual * residual;
+		}
+		
+		return sumOfSquares;
+	}
+	
+	// damping factor after an accepted step with the given ratio of the actual and predicted reduction
+	private double decreaseLambda(double lambda, double gainRatio) {
+		
+		switch (damping) {
+		case NIELSEN:
+			return lambda * Math.max(1.0 / 3, 1 - Math.pow(2 * gainRatio - 1, 3));
+		case DELAYED_GRATIFICATION:
+			return lambda / 3;
+		default:
+			return lambda / 10;
+		}
+		
+	}
+	
+	// damping factor after a rejected step, nu is doubled after every successive rejection
+	private double increaseLambda(double lambda, double nu) {
+		
+		switch (damping) {
+		case NIELSEN:
+			return lambda * nu;
+		case DELAYED_GRATIFICATION:
+			return lambda * 2;
+		default:
+			return lambda * 10;
+		}
+		
+	}
+	
+	/**
+	 * Adds the geodesic acceleration a / 2 to the step v (in beta), where a solves the damped normal equations with
+	 * the second directional derivative of the model along v (by finite differences) as right hand side. The damped
+	 * normal matrix is still factorized in alpha (or is built again for Gauss-Jordan).
+	 * 
+	 * @return false when the acceleration is too large compared to the velocity
+	 */
+	private boolean accelerate(double[][] x, double[] s, int n, double[] parameters, int m, double lambda, SolverWorkspace workspace) {
+		
+		double[] alpha = workspace.alpha;
+		double[] beta = workspace.beta;
+		double[] normal = workspace.normal;
+		double[] acceleration = workspace.acceleration;
+		double[] newParameters = workspace.newParameters;
+		double[] curvature = workspace.curvature;
+		double[] values = workspace.values;
+		double[] jacobian = workspace.jacobian;
+		int[] varying = workspace.varying;
+		int columns = parameters.length;
+		double h = GEODESIC_STEP;
+		
+		for (int i = 0; i < parameters.length; i++)
+			newParameters[i] = parameters[i];
+		
+		for (int j = 0; j < m; j++)
+			newParameters[varying[j]] += h * beta[j];
+		
+		evaluate(x, n, newParameters, curvature, null);
+		
+		for (int j = 0; j < m; j++)
+			acceleration[j] = 0;
+		
+		for (int i = 0; i < n; i++) {
+			
+			double directional = 0;
+			
+			for (int j = 0; j < m; j++)
+				directional += jacobian[i * columns + varying[j]] * beta[j];
+			
+			double secondDerivative = (2 / h) * ((curvature[i] - values[i]) / h - directional);
+			
+			if (s != null && s[i] != 0)
+				secondDerivative /= s[i] * s[i];
+			
+			for (int j = 0; j < m; j++)
+				acceleration[j] -= jacobian[i * columns + varying[j]] * secondDerivative;
+		}
+		
+		if (solver == Solver.CHOLESKY) {
+			substitute(alpha, m, acceleration, 0, 1);
+		}
+		else {
+			
+			for (int i = 0; i < m * m; i++)
+				alpha[i] = normal[i];
+			
+			for (int i = 0; i < m; i++)
+				alpha[i * m + i] *= 1 + lambda;
+			
+			gaussJordan(alpha, acceleration, m, 1);
+		}
+		
+		// compare the norms (scaled by the diagonal of the normal matrix)
+		double velocityNorm = 0;
+		double accelerationNorm = 0;
+		
+		for (int j = 0; j < m; j++) {
+			velocityNorm += normal[j * m + j] * beta[j] * beta[j];
+			accelerationNorm += normal[j * m + j] * acceleration[j] * acceleration[j];
+		}
+		
+		if (2 * Math.sqrt(accelerationNorm) > maxAccelerationRatio * Math.sqrt(velocityNorm))
+			return false;
+		
+		for (int j = 0; j < m; j++)
+			beta[j] += 0.5 * acceleration[j];
+		
+		return true;
+	}
+	
+	/**
+	 * Sets the parameters that lie outside the bounds to the nearest bound.
+	 * 
+	 * @return true when a parameter was outside the bounds
+	 */
+	public boolean project(double[] parameters) {
+		
+		boolean isProjected = false;
+		
+		for (int i = 0; i < parameters.length; i++) {
+			
+			if (lowerBounds != null && parameters[i] < lowerBounds[i]) {
+				parameters[i] = lowerBounds[i];
+				isProjected = true;
+			}
+			
+			if (upperBounds != null && parameters[i] > upperBounds[i]) {
+				parameters[i] = upperBounds[i];
+				isProjected = true;
+			}
+			
+		}
+		
+		return isProjected;
+	}
+	
+	private static double getMaxAbs(double[] a, int n) {
+		
+		double max = 0;
+		
+		for (int i = 0; i < n; i++)
+			max = Math.max(max, Math.abs(a[i]));
+		
+		return max;
+	}
+	
+	// solves alpha * x = beta in place (beta becomes x), returns false when alpha is not positive definite
+	private boolean solveNormalEquations(double[] alpha, double[] beta, int m) {
+		
+		if (solver == Solver.GAUSS_JORDAN) {
+			gaussJordan(alpha, beta, m, 1);
+			return true;
+		}
+		
+		if (!decompose(alpha, m))
+			return false;
+		
+		substitute(alpha, m, beta, 0, 1);
+		return true;
+	}
+	
+	/**
+	 * LDL^T factorization of the symmetric n x n matrix a (flat, row major) in place. The unit lower triangle
+	 * L is stored below the diagonal and D on the diagonal. Only the lower triangle of a is read.
+	 * 
+	 * @return false when the matrix is not positive definite
+	 */
+	public static boolean decompose(double[] a, int n) {
+		
+		for (int j = 0; j < n; j++) {
+			
+			int rowJ = j * n;
+			double d = a[rowJ + j];
+			
+			for (int k = 0; k < j; k++)
+				d -= a[rowJ + k] * a[rowJ + k] * a[k * n + k];
+			
+			if (!(d > 0))	// also catches NaN
+				return false;
+			
+			a[rowJ + j] = d;
+			
+			for (int i = j + 1; i < n; i++) {
+				
+				int rowI = i * n;
+				double l = a[rowI + j];
+				
+				for (int k = 0; k < j; k++)
+					l -= a[rowI + k] * a[rowJ + k] * a[k * n + k];
+				
+				a[rowI + j] = l / d;
+			}
+			
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Solves L * D * L^T * x = b with a factorization obtained by {@link #decompose(double[], int)}. The right
+	 * hand side is a column of the flat (row major) matrix b with the given number of columns and is replaced by x.
+	 */
+	public static void substitute(double[] a, int n, double[] b, int column, int columns) {
+		
+		// forward substitution (L)
+		for (int i = 0; i < n; i++) {
+			double x = b[i * columns + column];
+			
+			for (int k = 0; k < i; k++)
+				x -= a[i * n + k] * b[k * columns + column];
+			
+			b[i * columns + column] = x;
+		}
+		
+		// diagonal (D)
+		for (int i = 0; i < n; i++)
+			b[i * columns + column] /= a[i * n + i];
+		
+		// backward substitution (L^T)
+		for (int i = n - 1; i >= 0; i--) {
+			double x = b[i * columns + column];
+			
+			for (int k = i + 1; k < n; k++)
+				x -= a[k * n + i] * b[k * columns + column];
+			
+			b[i * columns + column] = x;
+		}
+		
+	}
+	
+	/**
+	 * Gauss-Jordan elimination on flat (row major) matrices; left is n x n and right is n x rCols.
+	 */
+	public void gaussJordan(double[] left, double[] right, int n, int rCols) {
+		
+		for (int i = 0; i < n; i++) {
+			
+			// find pivot
+			int max = i;
+			
+			for (int j = i + 1; j < n; j++) {
+				if (Math.abs(left[j * n + i]) > Math.abs(left[max * n + i]))
+					max = j;
+			}
+			
+			// swap rows
+			if (max != i) {
+				
+				for (int k = 0; k < n; k++) {
+					double t = left[i * n + k];
+					left[i * n + k] = left[max * n + k];
+					left[max * n + k] = t;
+				}
+				
+				for (int k = 0; k < rCols; k++) {
+					double t = right[i * rCols + k];
+					right[i * rCols + k] = right[max * rCols + k];
+					right[max * rCols + k] = t;
+				}
+				
+			}
+			
+			// reduce
+			for (int j = 0; j < n; j++) {
+				
+				if (j != i) {
+					double d = left[j * n + i] / left[i * n + i];
+					
+					left[j * n + i] = 0;
+					
+					for (int k = i + 1; k < n; k++)
+						left[j * n + k] -= d * left[i * n + k];
+					
+					for (int k = 0; k < rCols; k++)
+						right[j * rCols + k] -= d * right[i * rCols + k];
+				}
+			}
+		}
+		
+		for (int i = 0; i < n; i++) {
+			double d = left[i * n + i];
+			
+			for (int k = 0; k < rCols; k++)
+				right[i * rCols + k] /= d;
+			
+			left[i * n + i] = 1;
+		}
+	}
+	
 	public void gaussJordan(double[][] left, double[][] right) {
 		int n = left.length;
 		int rCols = right[0].length;
@@ -247,6 +822,32 @@ public abstract class LevenbergMarquardt {
 	public abstract double getValue(double[] x, double[] parameters);
 	public abstract void getGradient(double[] x, double[] parameters, double[] dyda);
 	
+	/**
+	 * Evaluates the model with {@link #getValue(double[], double[])} and {@link #getGradient(double[], double[], double[])}
+	 * for every point. Override to compute values and derivatives in one pass.
+	 */
+	@Override
+	public void evaluate(double[][] x, int n, double[] p, double[] values, double[] jacobian) {
+		
+		if (pointGradient.length < p.length)
+			pointGradient = new double[p.length];
+		
+		for (int i = 0; i < n; i++) {
+			
+			values[i] = getValue(x[i], p);
+			
+			if (jacobian != null) {
+				
+				getGradient(x[i], p, pointGradient);
+				
+				for (int j = 0; j < p.length; j++)
+					jacobian[i * p.length + j] = pointGradient[j];
+			}
+			
+		}
+		
+	}
+	
 	public static void main(String[] args) {
 		
 		double[][] x = {{0}, {1}, {2}, {3}, {4}, {5}, {6},
@@ -299,6 +900,7 @@ public abstract class LevenbergMarquardt {
 		
 		System.out.printf("chi^2 %f\n", lm.sumOfSquares);
 		System.out.printf("iterations %d\n", lm.iterations);
+		System.out.printf("termination %s\n", lm.termination);
 		System.out.printf("R^2 %f\n",  lm.rSquared);
 		
 
@@ -0,0 +1,351 @@
+package analyze;
+
+/**
+ * Sparse linear assignment problem solver (minimum cost matching of rows and columns) for linking particles
+ * between frames.
+ *
+ * Only the possible assignments (e.g. the peaks within the maximum step size) are added with
+ * {@link #add(int, int, double)}; every row and column can also stay unassigned at a death and birth cost.
+ * As in Jaqaman et al. (Nature Methods 5, 2008) the problem is extended to a square problem of size
+ * rows + columns: row i can be assigned to its own dummy column at the death cost, a dummy row to column j at
+ * the birth cost, and the dummy rows and columns of a possible assignment can be assigned to each other at no
+ * cost. An assignment is therefore made when its cost is lower than the birth plus the death cost (and the
+ * total cost is minimal). The extended problem is stored as a sparse matrix (rows of edges), so the memory
+ * grows with the number of possible assignments and not with rows x columns.
+ *
+ * The problem is solved with shortest augmenting paths (Jonker and Volgenant, Computing 38, 1987): rows are
+ * first assigned to their cheapest column when it is free, the remaining rows are assigned along the shortest
+ * path (Dijkstra with a heap, on the reduced costs) to a free column after which the column prices are updated.
+ * The search of a path stops at the first free column, so in sparse problems it only visits the columns near a
+ * conflict.
+ */
+public class LinearAssignment {
+
+	private int rows;
+	private int columns;
+
+	// possible assignments as added
+	private int edges;
+	private int[] edgeRows = new int[16];
+	private int[] edgeColumns = new int[16];
+	private double[] edgeCosts = new double[16];
+
+	// extended problem (compressed rows)
+	private int[] rowStart = new int[0];
+	private int[] column = new int[0];
+	private double[] cost = new double[0];
+
+	// solution and duals of the extended problem
+	private int[] columnOfRow = new int[0];
+	private int[] rowOfColumn = new int[0];
+	private double[] assignedCost = new double[0];
+	private double[] price = new double[0];
+
+	// shortest path search (the stamps avoid clearing the arrays for every search)
+	private double[] distance = new double[0];
+	private int[] predecessor = new int[0];
+	private double[] predecessorCost = new double[0];
+	private int[] reached = new int[0];
+	private int[] scanned = new int[0];
+	private int[] scannedColumns = new int[0];
+	private int stamp = 0;
+
+	private int[] heap = new int[0];
+	private double[] heapKeys = new double[0];
+	private int heapSize;
+
+	/**
+	 * Starts a new problem with the given number of rows and columns.
+	 */
+	public void clear(int rows, int columns) {
+		this.rows = rows;
+		this.columns = columns;
+		edges = 0;
+	}
+
+	/**
+	 * Adds a possible assignment of row to column. Costs should be nonnegative.
+	 */
+	public void add(int row, int column, double cost) {
+
+		if (edges == edgeRows.length) {
+			edgeRows = java.util.Arrays.copyOf(edgeRows, 2 * edges);
+			edgeColumns = java.util.Arrays.copyOf(edgeColumns, 2 * edges);
+			edgeCosts = java.util.Arrays.copyOf(edgeCosts, 2 * edges);
+		}
+
+		edgeRows[edges] = row;
+		edgeColumns[edges] = column;
+		edgeCosts[edges] = cost;
+		edges++;
+	}
+
+	/**
+	 * Solves the problem and stores the column assigned to each row in assignment (-1 for an unassigned row).
+	 *
+	 * @return the total cost, including the birth and death costs of the unassigned rows and columns
+	 */
+	public double solve(double birthCost, double deathCost, int[] assignment) {
+
+		int n = rows + columns;
+
+		build(birthCost, deathCost);
+		ensureCapacity(n);
+
+		for (int j = 0; j < n; j++) {
+			rowOfColumn[j] = -1;
+			price[j] = 0;
+		}
+
+		// assign the rows to their cheapest column when it is still free (the reduced costs stay nonnegative)
+		for (int i = 0; i < n; i++) {
+
+			columnOfRow[i] = -1;
+
+			int best = -1;
+
+			for (int e = rowStart[i]; e < rowStart[i + 1]; e++) {
+				if (best == -1 || cost[e] < cost[best])
+					best = e;
+			}
+
+			if (best != -1 && rowOfColumn[column[best]] == -1) {
+				columnOfRow[i] = column[best];
+				rowOfColumn[column[best]] = i;
+				assignedCost[i] = cost[best];
+			}
+
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (columnOfRow[i] == -1)
+				augment(i);
+		}
+
+		double total = 0;
+
+		for (int i = 0; i < n; i++)
+			total += assignedCost[i];
+
+		for (int i = 0; i < rows; i++)
+			assignment[i] = columnOfRow[i] < columns ? columnOfRow[i] : -1;
+
+		return total;
+	}
+
+	// extended problem in compressed rows: the possible assignments, the dummy assignments (death and birth) and
+	// the assignments of the dummy rows to the dummy columns (transposed possible assignments)
+	private void build(double birthCost, double deathCost) {
+
+		int n = rows + columns;
+		int size = 2 * edges + n;
+
+		if (rowStart.length < n + 1)
+			rowStart = new int[n + 1];
+
+		if (column.length < size) {
+			column = new int[size];
+			cost = new double[size];
+		}
+
+		for (int i = 0; i <= n; i++)
+			rowStart[i] = 0;
+
+		// count the edges of every row (shifted by one)
+		for (int e = 0; e < edges; e++) {
+			rowStart[edgeRows[e] + 1]++;
+			rowStart[rows + edgeColumns[e] + 1]++;
+		}
+
+		for (int i = 0; i < n; i++)
+			rowStart[i + 1]++;
+
+		for (int i = 0; i < n; i++)
+			rowStart[i + 1] += rowStart[i];
+
+		// fill, rowStart[i] is used as the insert position of row i and restored afterwards
+		for (int e = 0; e < edges; e++) {
+
+			int i = edgeRows[e];
+			int j = edgeColumns[e];
+
+			column[rowStart[i]] = j;
+			cost[rowStart[i]++] = edgeCosts[e];
+
+			column[rowStart[rows + j]] = columns + i;
+			cost[rowStart[rows + j]++] = 0;
+		}
+
+		for (int i = 0; i < rows; i++) {
+			column[rowStart[i]] = columns + i;
+			cost[rowStart[i]++] = deathCost;
+		}
+
+		for (int j = 0; j < columns; j++) {
+			column[rowStart[rows + j]] = j;
+			cost[rowStart[rows + j]++] = birthCost;
+		}
+
+		for (int i = n; i > 0; i--)
+			rowStart[i] = rowStart[i - 1];
+
+		rowStart[0] = 0;
+	}
+
+	private void ensureCapacity(int n) {
+
+		if (columnOfRow.length < n) {
+			columnOfRow = new int[n];
+			rowOfColumn = new int[n];
+			assignedCost = new double[n];
+			price = new double[n];
+			distance = new double[n];
+			predecessor = new int[n];
+			predecessorCost = new double[n];
+			reached = new int[n];
+			scanned = new int[n];
+			scannedColumns = new int[n];
+		}
+
+	}
+
+	// assigns a free row along the shortest augmenting path to a free column
+	private void augment(int free) {
+
+		stamp++;
+		heapSize = 0;
+
+		int scannedCount = 0;
+		int end = -1;
+		double endDistance = 0;
+
+		for (int e = rowStart[free]; e < rowStart[free + 1]; e++)
+			relax(column[e], cost[e] - price[column[e]], free, cost[e]);
+
+		while (heapSize > 0) {
+
+			double d = heapKeys[0];
+			int j = pop();
+
+			if (scanned[j] == stamp || d > distance[j])
+				continue;
+
+			scanned[j] = stamp;
+			scannedColumns[scannedCount++] = j;
+
+			if (rowOfColumn[j] == -1) {
+				end = j;
+				endDistance = d;
+				break;
+			}
+
+			// continue from the row that is assigned to column j (its reduced cost is zero)
+			int i = rowOfColumn[j];
+			double u = assignedCost[i] - price[j];
+
+			for (int e = rowStart[i]; e < rowStart[i + 1]; e++) {
+
+				int k = column[e];
+
+				if (scanned[k] != stamp)
+					relax(k, d + cost[e] - price[k] - u, i, cost[e]);
+			}
+
+		}
+
+		if (end == -1)
+			throw new IllegalStateException("no augmenting path");
+
+		// update the prices of the scanned columns, so the reduced costs stay nonnegative
+		for (int s = 0; s < scannedCount; s++) {
+			int j = scannedColumns[s];
+			price[j] += distance[j] - endDistance;
+		}
+
+		// assign along the path
+		int j = end;
+
+		while (true) {
+
+			int i = predecessor[j];
+			int previous = columnOfRow[i];
+
+			rowOfColumn[j] = i;
+			columnOfRow[i] = j;
+			assignedCost[i] = predecessorCost[j];
+
+			if (i == free)
+				break;
+
+			j = previous;
+		}
+
+	}
+
+	private void relax(int j, double d, int row, double edgeCost) {
+
+		if (reached[j] == stamp && d >= distance[j])
+			return;
+
+		reached[j] = stamp;
+		distance[j] = d;
+		predecessor[j] = row;
+		predecessorCost[j] = edgeCost;
+		push(j, d);
+	}
+
+	// binary heap of columns on distance (a column is pushed again when its distance decreases)
+	private void push(int j, double key) {
+
+		if (heapSize == heap.length) {
+			heap = java.util.Arrays.copyOf(heap, Math.max(16, 2 * heapSize));
+			heapKeys = java.util.Arrays.copyOf(heapKeys, heap.length);
+		}
+
+		int position = heapSize++;
+
+		while (position > 0) {
+
+			int parent = (position - 1) / 2;
+
+			if (heapKeys[parent] <= key)
+				break;
+
+			heap[position] = heap[parent];
+			heapKeys[position] = heapKeys[parent];
+			position = parent;
+		}
+
+		heap[position] = j;
+		heapKeys[position] = key;
+	}
+
+	private int pop() {
+
+		int top = heap[0];
+		int last = heap[--heapSize];
+		double key = heapKeys[heapSize];
+		int position = 0;
+
+		while (2 * position + 1 < heapSize) {
+
+			int child = 2 * position + 1;
+
+			if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child])
+				child++;
+
+			if (heapKeys[child] >= key)
+				break;
+
+			heap[position] = heap[child];
+			heapKeys[position] = heapKeys[child];
+			position = child;
+		}
+
+		heap[position] = last;
+		heapKeys[position] = key;
+
+		return top;
+	}
+
+}
@@ -0,0 +1,217 @@
+package analyze;
+
+/**
+ * Least squares solution of an overdetermined linear system by Householder QR factorization.
+ *
+ * The design matrix is factored directly instead of forming the normal equations (A^T * A), so the
+ * condition number is not squared. This matters for e.g. polynomials of a high degree, where the columns
+ * (1, x, x^2, ...) differ by many orders of magnitude. Models that are linear in their parameters declare
+ * this with {@link LevenbergMarquardt#isLinear()} and are then solved in one pass by this class.
+ */
+public final class LinearLeastSquares {
+
+	// size of a diagonal element of R relative to the norm of its column below which the design matrix is
+	// considered rank deficient
+	private static final double RANK_TOLERANCE = 1e-13;
+
+	private LinearLeastSquares() {
+
+	}
+
+	/**
+	 * Solves min |A * x - b| for the n x m matrix a (row major, n >= m). The matrix a and the vector b
+	 * are overwritten. On return the first m elements of b hold the solution x and the upper triangle of
+	 * the first m rows of a holds R. When covariance is not null, (A^T * A)^-1 is stored in it (m x m, row major).
+	 *
+	 * @return the sum of squared residuals, or NaN when A does not have full column rank
+	 */
+	public static double solve(double[] a, int n, int m, double[] b, double[] covariance) {
+
+		for (int k = 0; k < m; k++) {
+
+			// householder reflection of column k onto (beta, 0, ..., 0)
+			double norm = 0;
+			double columnNorm = 0;
+
+			for (int i = k; i < n; i++)
+				norm += a[i * m + k] * a[i * m + k];
+
+			// the reflections do not change the norm of the whole column, so this is the norm of the original column
+			for (int i = 0; i < k; i++)
+				columnNorm += a[i * m + k] * a[i * m + k];
+
+			columnNorm = Math.sqrt(columnNorm + norm);
+			norm = Math.sqrt(norm);
+
+			if (norm <= RANK_TOLERANCE * columnNorm)
+				return Double.NaN;
+
+			double akk = a[k * m + k];
+			double beta = akk > 0 ? -norm : norm;
+
+			// v = (akk - beta, a[k + 1][k], ..., a[n - 1][k]), stored in column k
+			a[k * m + k] = akk - beta;
+			double vv = 2 * (norm * norm - akk * beta);
+
+			for (int j = k + 1; j < m; j++) {
+
+				double s = 0;
+
+				for (int i = k; i < n; i++)
+					s += a[i * m + k] * a[i * m + j];
+
+				s *= 2 / vv;
+
+				for (int i = k; i < n; i++)
+					a[i * m + j] -= s * a[i * m + k];
+			}
+
+			double s = 0;
+
+			for (int i = k; i < n; i++)
+				s += a[i * m + k] * b[i];
+
+			s *= 2 / vv;
+
+			for (int i = k; i < n; i++)
+				b[i] -= s * a[i * m + k];
+
+			a[k * m + k] = beta;
+		}
+
+		double sumOfSquares = 0;
+
+		for (int i = m; i < n; i++)
+			sumOfSquares += b[i] * b[i];
+
+		// back substitution R * x = Q^T * b
+		for (int i = m - 1; i >= 0; i--) {
+
+			double sum = b[i];
+
+			for (int j = i + 1; j < m; j++)
+				sum -= a[i * m + j] * b[j];
+
+			b[i] = sum / a[i * m + i];
+		}
+
+		if (covariance != null)
+			computeCovariance(a, m, covariance);
+
+		return sumOfSquares;
+	}
+
+	// (A^T * A)^-1 = R^-1 * R^-T from the R factor in the upper triangle of a
+	private static void computeCovariance(double[] a, int m, double[] covariance) {
+
+		// inverse of R (upper triangular), column by column
+		for (int j = m - 1; j >= 0; j--) {
+
+			covariance[j * m + j] = 1 / a[j * m + j];
+
+			for (int i = j - 1; i >= 0; i--) {
+
+				double sum = 0;
+
+				for (int k = i + 1; k <= j; k++)
+					sum += a[i * m + k] * covariance[k * m + j];
+
+				covariance[i * m + j] = -sum / a[i * m + i];
+			}
+
+		}
+
+		// R^-1 * R^-T in place: element (i, j) with j >= i only needs the rows i and j of R^-1 from column j onwards
+		for (int i = 0; i < m; i++) {
+			for (int j = i; j < m; j++) {
+
+				double sum = 0;
+
+				for (int k = j; k < m; k++)
+					sum += covariance[i * m + k] * covariance[j * m + k];
+
+				covariance[i * m + j] = sum;
+			}
+		}
+
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < i; j++)
+				covariance[i * m + j] = covariance[j * m + i];
+		}
+
+	}
+
+	public static void main(String[] args) {
+
+		// drift correction: a polynomial of degree 5 fitted to the positions of 10 peaks in 1000 slices
+		final int parameters = 6;
+		int n = 10000;
+		double[][] x = new double[n][1];
+		double[] y = new double[n];
+		java.util.Random random = new java.util.Random(1);
+
+		for (int i = 0; i < n; i++) {
+			double t = i / 10;
+			x[i][0] = t;
+			y[i] = 0.5 + 2e-3 * t - 3e-6 * t * t + 2e-9 * t * t * t + 0.05 * random.nextGaussian();
+		}
+
+		for (final boolean isLinear: new boolean[] {false, true}) {
+
+			LevenbergMarquardt lm = new LevenbergMarquardt() {
+
+				@Override
+				public double getValue(double[] x, double[] p) {
+
+					double value = 0;
+
+					for (int i = p.length - 1; i >= 0; i--)
+						value = value * x[0] + p[i];
+
+					return value;
+				}
+
+				@Override
+				public void getGradient(double[] x, double[] p, double[] dyda) {
+
+					double power = 1;
+
+					for (int i = 0; i < p.length; i++) {
+						dyda[i] = power;
+						power *= x[0];
+					}
+				}
+
+				@Override
+				public boolean isLinear() {
+					return isLinear;
+				}
+
+			};
+
+			double[] p = new double[parameters];
+			double[] e = new double[parameters];
+			SolverWorkspace workspace = new SolverWorkspace(parameters);
+			long time = Long.MAX_VALUE;
+
+			for (int repeat = 0; repeat < 20; repeat++) {
+
+				// the initial guess of the drift correction
+				for (int i = 0; i < parameters; i++)
+					p[i] = 0.1 * Math.pow(0.1, i);
+
+				long beginTime = System.nanoTime();
+				lm.solve(x, y, null, n, p, null, e, 0.001, workspace);
+				time = Math.min(time, System.nanoTime() - beginTime);
+			}
+
+			System.out.printf("%s: %dus, %d iterations, %s, sum of squares %f\n", isLinear ? "linear" : "levenberg-marquardt",
+					time / 1000, lm.iterations, lm.termination, lm.sumOfSquares);
+
+			for (int i = 0; i < parameters; i++)
+				System.out.printf("  p[%d] = %g +- %g\n", i, p[i], e[i]);
+		}
+
+	}
+
+}
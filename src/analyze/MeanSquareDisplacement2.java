@@ -2,8 +2,11 @@ package analyze;
 
 import java.awt.Color;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import util.ResultsTableColumns;
 import util.ResultsTableSorter;
+import util.TrajectoryIndex;
 import ij.IJ;
 import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
@@ -20,6 +23,20 @@ public class MeanSquareDisplacement2 implements PlugIn {
 	private boolean averageTrajectories = false;
 	private int dimensionalityFit = 4;	// 2D
 	private boolean showFitPlots = false;
+	private boolean showSquareDisplacements = false;
+	
+	// time of the FFT path per size * log2(size) relative to the time of one pair (measured)
+	private static final double FFT_COST = 7;
+	
+	// longest span of slices of the FFT path (the FFT path allocates 16 arrays of twice this size, 64 MB)
+	private static final int MAX_FFT_SLICES = 1 << 18;
+	
+	// largest relative error of the variance of the FFT path at the smallest lag, otherwise the pairs are enumerated
+	private static final double VARIANCE_PRECISION = 1e-6;
+	
+	// the sequences of which the correlations are computed
+	private static final int M = 0, X = 1, Y = 2, S = 3, SS = 4, XX = 5, YY = 6, XY = 7, SX = 8, SY = 9;
+	private static final int SEQUENCES = 10;
 	
 	@Override
 	public void run(String arg0) {
@@ -39,6 +56,7 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		dialog.addChoice("Diffusion_dimensionality", new String[]{"1D", "2D"}, dimensionality);
 		dialog.addCheckbox("Average_all_trajectories", averageTrajectories);
 		dialog.addCheckbox("Show_fit_plots", showFitPlots);
+		dialog.addCheckbox("Show_square_displacements", showSquareDisplacements);
 		
 		dialog.showDialog();
 		
@@ -52,6 +70,7 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		dimensionality = dialog.getNextChoice();
 		averageTrajectories = dialog.getNextBoolean();
 		showFitPlots = dialog.getNextBoolean();
+		showSquareDisplacements = dialog.getNextBoolean();
 		
 		if (dimensionality.equals("1D"))
 			dimensionalityFit = 2;
@@ -59,97 +78,47 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		if (maxFitTime == 0)
 			maxFitTime = Double.MAX_VALUE;
 		
-		ResultsTable sdTable = new ResultsTable();
-		sdTable.setPrecision(Analyzer.getPrecision());
+		// the rows of every trajectory
+		TrajectoryIndex index = TrajectoryIndex.get(table);
+		double[] xs = ResultsTableColumns.get(table, "x");
+		double[] ys = ResultsTableColumns.get(table, "y");
+		int[] slices = ResultsTableColumns.getInts(table, "slice");
 		
-		for (int row1 = 0; row1 < table.getCounter(); row1++) {
-			
-			double x1 = table.getValue("x", row1);
-			double y1 = table.getValue("y", row1);
-			int slice1 = (int)table.getValue("slice", row1);
-			int trajectory1 = (int)table.getValue("trajectory", row1);
-			
-			for (int row2 = row1 + 1; row2 < table.getCounter(); row2++) {
-				
-				double x2 = table.getValue("x", row2);
-				double y2 = table.getValue("y", row2);
-				int slice2 = (int)table.getValue("slice", row2);
-				int trajectory2 = (int)table.getValue("trajectory", row2);
-				
-				if (trajectory1 != trajectory2)
-					break;
-				
-				double dx = (x2 - x1) * pixelSize;
-				double dy = (y2 - y1) * pixelSize;
-				double dt = (slice2 - slice1) * timeInterval;	// delta t
-				double sd = dx * dx + dy * dy;					// square displacement
-				
-				sdTable.incrementCounter();
-				sdTable.addValue("trajectory", averageTrajectories ? -1 : trajectory1);
-				sdTable.addValue("dt", dt);
-				sdTable.addValue("sd", sd);
-				
-			}
-			
-		}
+		if (showSquareDisplacements)
+			createSquareDisplacementTable(index, xs, ys, slices).show("square displacements");
 		
-		ResultsTableSorter.sort(sdTable, true, "trajectory", "dt");
-		sdTable.show("square displacements");
+		// the number of pairs, the mean and the sum of squared deviations of the square displacements for every dt (in
+		// slices), of every trajectory individually or of all trajectories together
+		int maxLag = 0;
 		
+		for (int i = 0; i < index.size(); i++)
+			maxLag = Math.max(maxLag, index.getLastSlice(i) - index.getFirstSlice(i));
 		
-		// find the start and end of each group (same dt and trajectory) that we need to average
-		// we need to calculate the mean square displacement for each dt, trajectory individually
-		ArrayList<Integer> offsets = new ArrayList<Integer>();
-		offsets.add(0);
-		
-		for (int row = 0; row < sdTable.getCounter(); row++) {
-			
-			double dt = sdTable.getValue("dt", row);
-			int trajectory = (int)sdTable.getValue("trajectory", row);
-			
-			if (row + 1 >= sdTable.getCounter() || dt != sdTable.getValue("dt", row + 1) || trajectory != sdTable.getValue("trajectory", row + 1)) {
-				offsets.add(row + 1);
-			}
-			
-		}
+		double[] counts = new double[maxLag + 1];
+		double[] means = new double[maxLag + 1];
+		double[] m2s = new double[maxLag + 1];
 		
 		// calculate for each group the mean square displacement and standard deviation
 		ResultsTable msdTable = new ResultsTable();
 		msdTable.setPrecision(Analyzer.getPrecision());
 		
-		for (int i = 0; i < offsets.size() - 1; i++) {
-			
-			int from = offsets.get(i);
-			int to = offsets.get(i + 1);
+		for (int i = 0; i < index.size(); i++) {
 			
-			double mean = 0.0;
+			int lags = index.getLastSlice(i) - index.getFirstSlice(i) + 1;
 			
-			for (int row = from; row < to; row++)
-				mean += sdTable.getValue("sd", row);
+			addSquareDisplacements(xs, ys, slices, index.getFrom(i), index.getTo(i), pixelSize, counts, means, m2s);
 			
-			mean /= (to - from);
-			
-			double stdDev = 0.0;
-			
-			for (int row = from; row < to; row++) {
-				double d = sdTable.getValue("sd", row) - mean;
-				stdDev += d * d;
+			if (!averageTrajectories) {
+				addMeanSquareDisplacements(msdTable, index.getTrajectory(i), counts, means, m2s, lags - 1);
+				Arrays.fill(counts, 0, lags, 0);
+				Arrays.fill(means, 0, lags, 0);
+				Arrays.fill(m2s, 0, lags, 0);
 			}
 			
-			stdDev = Math.sqrt(stdDev / (to - from));
-			
-			if (to - from > minimumNumberOfPoints) {
-				msdTable.incrementCounter();
-			
-				msdTable.addValue("trajectory", sdTable.getValue("trajectory", from));
-				msdTable.addValue("dt", sdTable.getValue("dt", from));
-				msdTable.addValue("msd", mean);
-				msdTable.addValue("stdDev", stdDev);
-				msdTable.addValue("points", to - from);
-			}
-				
 		}
 		
+		if (averageTrajectories)
+			addMeanSquareDisplacements(msdTable, -1, counts, means, m2s, maxLag);
 		
 		msdTable.show("mean square displacements");
 		
@@ -162,18 +131,23 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		ArrayList<Double> msds = new ArrayList<Double>();
 		ArrayList<Double> stdDevs = new ArrayList<Double>();
 		
+		double[] msdTrajectories = ResultsTableColumns.get(msdTable, "trajectory", 0);
+		double[] msdDts = ResultsTableColumns.get(msdTable, "dt", 0);
+		double[] msdValues = ResultsTableColumns.get(msdTable, "msd", 0);
+		double[] msdStdDevs = ResultsTableColumns.get(msdTable, "stdDev", 0);
+		
 		for (int row = 0; row < msdTable.getCounter(); row++) {
 			
-			int trajectory = (int) msdTable.getValue("trajectory", row);
-			double dt = msdTable.getValue("dt", row);
-			double msd = msdTable.getValue("msd", row);
-			double stdDev = msdTable.getValue("stdDev", row);
+			int trajectory = (int)msdTrajectories[row];
+			double dt = msdDts[row];
+			double msd = msdValues[row];
+			double stdDev = msdStdDevs[row];
 			
 			dts.add(dt);
 			msds.add(msd);
 			stdDevs.add(stdDev);
 			
-			if (row + 1 >= msdTable.getCounter() || trajectory != msdTable.getValue("trajectory", row + 1)) {
+			if (row + 1 >= msdTable.getCounter() || trajectory != msdTrajectories[row + 1]) {
 				
 				if (dts.size() > 0) {
 					
@@ -214,6 +188,11 @@ public class MeanSquareDisplacement2 implements PlugIn {
 							dyda[0] = dimensionalityFit * x[0];
 						}
 						
+						@Override
+						public boolean isLinear() {
+							return true;
+						}
+						
 					};
 					
 					double estimatedMsd = yfit[n - 1];
@@ -266,5 +245,360 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		
 		dTable.show("Diffusion Coefficients");
 	}
+	
+	private void addMeanSquareDisplacements(ResultsTable msdTable, int trajectory, double[] counts, double[] means, double[] m2s, int maxLag) {
+		
+		for (int lag = 0; lag <= maxLag; lag++) {
+			
+			if (counts[lag] == 0 || counts[lag] <= minimumNumberOfPoints)
+				continue;
+			
+			msdTable.incrementCounter();
+			
+			msdTable.addValue("trajectory", trajectory);
+			msdTable.addValue("dt", lag * timeInterval);
+			msdTable.addValue("msd", means[lag]);
+			msdTable.addValue("stdDev", Math.sqrt(m2s[lag] / counts[lag]));
+			msdTable.addValue("points", counts[lag]);
+		}
+		
+	}
+	
+	// the square displacements of all pairs of peaks, sorted on trajectory and dt
+	private ResultsTable createSquareDisplacementTable(TrajectoryIndex index, double[] xs, double[] ys, int[] slices) {
+		
+		ResultsTable sdTable = new ResultsTable();
+		sdTable.setPrecision(Analyzer.getPrecision());
+		
+		int sdColumnTrajectory = sdTable.getFreeColumn("trajectory");
+		int sdColumnDt = sdTable.getFreeColumn("dt");
+		int sdColumnSd = sdTable.getFreeColumn("sd");
+		
+		for (int i = 0; i < index.size(); i++) {
+			
+			int trajectory = index.getTrajectory(i);
+			int to = index.getTo(i);
+			
+			for (int row1 = index.getFrom(i); row1 < to; row1++) {
+				
+				double x1 = xs[row1];
+				double y1 = ys[row1];
+				int slice1 = slices[row1];
+				
+				for (int row2 = row1 + 1; row2 < to; row2++) {
+					
+					double x2 = xs[row2];
+					double y2 = ys[row2];
+					int slice2 = slices[row2];
+					
+					double dx = (x2 - x1) * pixelSize;
+					double dy = (y2 - y1) * pixelSize;
+					double dt = (slice2 - slice1) * timeInterval;	// delta t
+					double sd = dx * dx + dy * dy;					// square displacement
+					
+					sdTable.incrementCounter();
+					sdTable.addValue(sdColumnTrajectory, averageTrajectories ? -1 : trajectory);
+					sdTable.addValue(sdColumnDt, dt);
+					sdTable.addValue(sdColumnSd, sd);
+					
+				}
+				
+			}
+			
+		}
+		
+		ResultsTableSorter.sort(sdTable, true, "trajectory", "dt");
+		
+		return sdTable;
+	}
+	
+	/**
+	 * Adds count values with their mean and sum of squared deviations (m2) to the values of a lag, with the
+	 * pairwise update of Chan et al. (which is Welford's update for a single value).
+	 */
+	private static void accumulate(double[] counts, double[] means, double[] m2s, int lag, double count, double mean, double m2) {
+		
+		double n = counts[lag] + count;
+		double delta = mean - means[lag];
+		
+		m2s[lag] += m2 + delta * delta * counts[lag] * count / n;
+		means[lag] += delta * count / n;
+		counts[lag] = n;
+	}
+	
+	/**
+	 * Adds the number of pairs, the mean and the sum of squared deviations of the square displacements (in um^2) of
+	 * the rows from (inclusive) to (exclusive) of a trajectory to the values of the lags (in slices).
+	 * 
+	 * The sums over all pairs of a lag are correlations of the positions. The positions are placed on the slices (the
+	 * mask m is 1 where the trajectory has a peak and 0 in the gaps) so that a lag is a slice difference. With the
+	 * correlation C(f, g)[lag] = sum f[i + lag] g[i] and s = x^2 + y^2 the number of pairs is C(m, m) and the sum of
+	 * the square displacements is C(s, m) + C(m, s) - 2 C(x, x) - 2 C(y, y).
+	 * 
+	 * The sum of squares needs the fourth powers of the positions, and a trajectory that drifts far loses all precision
+	 * of the variance in them. Therefore the drift v (least squares, per slice) is removed first and the x axis is
+	 * turned in its direction, so that a displacement is (dx + |v| lag, dy). The square displacement is
+	 * A + 2 |v| lag dx + |v|^2 lag^2 with A = dx^2 + dy^2, and its variance is that of A + 2 |v| lag dx, which follows
+	 * from the sums of A, A^2, dx, dx^2 and A dx over the pairs:
+	 * 
+	 * sum A = C(s, m) + C(m, s) - 2 C(x, x) - 2 C(y, y)
+	 * sum A^2 = C(s^2, m) + C(m, s^2) + 2 C(s, s) + 4 C(x^2, x^2) + 8 C(xy, xy) + 4 C(y^2, y^2)
+	 *           - 4 C(sx, x) - 4 C(x, sx) - 4 C(sy, y) - 4 C(y, sy)
+	 * sum dx = C(x, m) - C(m, x)
+	 * sum dx^2 = C(x^2, m) + C(m, x^2) - 2 C(x, x)
+	 * sum A dx = C(sx, m) - C(m, sx) - C(s, x) + C(x, s) - 2 C(x^2, x) + 2 C(x, x^2) - 2 C(xy, y) + 2 C(y, xy)
+	 * 
+	 * All correlations are computed with one FFT of each sequence (two real sequences per complex FFT), so the time
+	 * is O(L log L) for a trajectory that spans L slices instead of O(L^2) for all pairs. Trajectories with fewer
+	 * pairs than the FFT costs (short trajectories, and sparse trajectories that span many more slices than they have
+	 * peaks), and trajectories with more than one peak in a slice, are enumerated pair by pair.
+	 * 
+	 * The rounding errors of the correlations grow with the fourth power of the distance of the positions to the
+	 * drift line, while the variance of the smallest lags only depends on the steps. Therefore the variance of the
+	 * smallest lag is compared with that of its pairs (found in linear time), and when it is off by more than
+	 * VARIANCE_PRECISION, as for positions that wander far compared to the steps (a drift that is not constant), all
+	 * pairs are enumerated instead.
+	 */
+	static void addSquareDisplacements(double[] xs, double[] ys, int[] slices, int from, int to, double pixelSize, double[] counts, double[] means, double[] m2s) {
+		
+		int firstSlice = slices[from];
+		int n = slices[to - 1] - firstSlice + 1;
+		int size = FFT.size(2 * Math.min(n, MAX_FFT_SLICES));
+		double pairs = 0.5 * (to - from) * (double)(to - from);
+		boolean isEnumerated = n > MAX_FFT_SLICES || pairs < FFT_COST * size * Integer.numberOfTrailingZeros(size);
+		
+		for (int row = from + 1; row < to && !isEnumerated; row++)
+			isEnumerated = slices[row] == slices[row - 1];
+		
+		if (isEnumerated) {
+			enumerate(xs, ys, slices, from, to, pixelSize, counts, means, m2s);
+			return;
+		}
+		
+		// mean and sum of squared deviations of the smallest lag (the first lag with pairs), to check the FFT path
+		int minLag = Integer.MAX_VALUE;
+		
+		for (int row = from + 1; row < to; row++)
+			minLag = Math.min(minLag, slices[row] - slices[row - 1]);
+		
+		double minLagCount = 0;
+		double minLagMean = 0;
+		double minLagM2 = 0;
+		
+		for (int row1 = from, row2 = from + 1; row2 < to; row2++) {
+			
+			while (slices[row2] - slices[row1] > minLag)
+				row1++;
+			
+			if (slices[row2] - slices[row1] == minLag) {
+				
+				double dx = (xs[row2] - xs[row1]) * pixelSize;
+				double dy = (ys[row2] - ys[row1]) * pixelSize;
+				double sd = dx * dx + dy * dy;
+				double delta = sd - minLagMean;
+				
+				minLagCount++;
+				minLagMean += delta / minLagCount;
+				minLagM2 += delta * (sd - minLagMean);
+			}
+			
+		}
+		
+		// drift (least squares fit of the positions to the slices)
+		double meanX = 0;
+		double meanY = 0;
+		double meanSlice = 0;
+		
+		for (int row = from; row < to; row++) {
+			meanX += xs[row];
+			meanY += ys[row];
+			meanSlice += slices[row];
+		}
+		
+		meanX /= to - from;
+		meanY /= to - from;
+		meanSlice /= to - from;
+		
+		double vx = 0;
+		double vy = 0;
+		double tt = 0;
+		
+		for (int row = from; row < to; row++) {
+			double t = slices[row] - meanSlice;
+			vx += t * (xs[row] - meanX);
+			vy += t * (ys[row] - meanY);
+			tt += t * t;
+		}
+		
+		vx *= pixelSize / tt;
+		vy *= pixelSize / tt;
+		
+		double v = Math.sqrt(vx * vx + vy * vy);
+		double cos = v > 0 ? vx / v : 1;
+		double sin = v > 0 ? vy / v : 0;
+		
+		// zero padded to at least 2n so the circular correlations do not wrap around
+		double[][] re = new double[SEQUENCES][size];
+		
+		for (int row = from; row < to; row++) {
+			
+			int i = slices[row] - firstSlice;
+			double t = slices[row] - meanSlice;
+			double px = (xs[row] - meanX) * pixelSize - vx * t;
+			double py = (ys[row] - meanY) * pixelSize - vy * t;
+			double x = cos * px + sin * py;
+			double y = cos * py - sin * px;
+			double s = x * x + y * y;
+			
+			re[M][i] = 1;
+			re[X][i] = x;
+			re[Y][i] = y;
+			re[S][i] = s;
+			re[SS][i] = s * s;
+			re[XX][i] = x * x;
+			re[YY][i] = y * y;
+			re[XY][i] = x * y;
+			re[SX][i] = s * x;
+			re[SY][i] = s * y;
+		}
+		
+		for (int j = 0; j < SEQUENCES; j += 2)
+			FFT.transformReal(re[j], re[j + 1]);
+		
+		// the correlations are real, so they are transformed back in pairs: (points, sum A), (sum A^2, sum dx) and
+		// (sum dx^2, sum A dx)
+		double[][] sumsRe = new double[3][size];
+		double[][] sumsIm = new double[3][size];
+		
+		correlate(re, M, M, 1, false, sumsRe[0], sumsIm[0]);
+		
+		correlate(re, S, M, 1, true, sumsRe[0], sumsIm[0]);
+		correlate(re, M, S, 1, true, sumsRe[0], sumsIm[0]);
+		correlate(re, X, X, -2, true, sumsRe[0], sumsIm[0]);
+		correlate(re, Y, Y, -2, true, sumsRe[0], sumsIm[0]);
+		
+		correlate(re, SS, M, 1, false, sumsRe[1], sumsIm[1]);
+		correlate(re, M, SS, 1, false, sumsRe[1], sumsIm[1]);
+		correlate(re, S, S, 2, false, sumsRe[1], sumsIm[1]);
+		correlate(re, XX, XX, 4, false, sumsRe[1], sumsIm[1]);
+		correlate(re, XY, XY, 8, false, sumsRe[1], sumsIm[1]);
+		correlate(re, YY, YY, 4, false, sumsRe[1], sumsIm[1]);
+		correlate(re, SX, X, -4, false, sumsRe[1], sumsIm[1]);
+		correlate(re, X, SX, -4, false, sumsRe[1], sumsIm[1]);
+		correlate(re, SY, Y, -4, false, sumsRe[1], sumsIm[1]);
+		correlate(re, Y, SY, -4, false, sumsRe[1], sumsIm[1]);
+		
+		correlate(re, X, M, 1, true, sumsRe[1], sumsIm[1]);
+		correlate(re, M, X, -1, true, sumsRe[1], sumsIm[1]);
+		
+		correlate(re, XX, M, 1, false, sumsRe[2], sumsIm[2]);
+		correlate(re, M, XX, 1, false, sumsRe[2], sumsIm[2]);
+		correlate(re, X, X, -2, false, sumsRe[2], sumsIm[2]);
+		
+		correlate(re, SX, M, 1, true, sumsRe[2], sumsIm[2]);
+		correlate(re, M, SX, -1, true, sumsRe[2], sumsIm[2]);
+		correlate(re, S, X, -1, true, sumsRe[2], sumsIm[2]);
+		correlate(re, X, S, 1, true, sumsRe[2], sumsIm[2]);
+		correlate(re, XX, X, -2, true, sumsRe[2], sumsIm[2]);
+		correlate(re, X, XX, 2, true, sumsRe[2], sumsIm[2]);
+		correlate(re, XY, Y, -2, true, sumsRe[2], sumsIm[2]);
+		correlate(re, Y, XY, 2, true, sumsRe[2], sumsIm[2]);
+		
+		for (int j = 0; j < 3; j++)
+			FFT.transform(sumsRe[j], sumsIm[j], true);
+		
+		for (int lag = 1; lag < n; lag++) {
+			
+			long count = Math.round(sumsRe[0][lag]);
+			
+			if (count == 0)
+				continue;
+			
+			double a = sumsIm[0][lag] / count;
+			double aa = sumsRe[1][lag] / count;
+			double dx = sumsIm[1][lag] / count;
+			double dxdx = sumsRe[2][lag] / count;
+			double adx = sumsIm[2][lag] / count;
+			
+			// mean and variance of the square displacement
+			double mean = a + 2 * v * lag * dx;
+			double variance = aa + 4 * v * lag * adx + 4 * v * v * lag * lag * dxdx - mean * mean;
+			
+			mean += v * v * lag * lag;
+			
+			mean = Math.max(0, mean);
+			variance = Math.max(0, variance);
+			
+			// positions too far from the drift line for the precision of the correlations
+			if (lag == minLag && Math.abs(count * variance - minLagM2) > VARIANCE_PRECISION * (minLagM2 + VARIANCE_PRECISION * count * mean * mean)) {
+				enumerate(xs, ys, slices, from, to, pixelSize, counts, means, m2s);
+				return;
+			}
+			
+			accumulate(counts, means, m2s, lag, count, mean, count * variance);
+		}
+		
+	}
+	
+	// adds the square displacements of the rows from (inclusive) to (exclusive) of a trajectory pair by pair
+	private static void enumerate(double[] xs, double[] ys, int[] slices, int from, int to, double pixelSize, double[] counts, double[] means, double[] m2s) {
+		
+		for (int row1 = from; row1 < to; row1++) {
+			
+			for (int row2 = row1 + 1; row2 < to; row2++) {
+				
+				double dx = (xs[row2] - xs[row1]) * pixelSize;
+				double dy = (ys[row2] - ys[row1]) * pixelSize;
+				double sd = dx * dx + dy * dy;
+				int lag = slices[row2] - slices[row1];
+				
+				accumulate(counts, means, m2s, lag, 1, sd, 0);
+			}
+			
+		}
+		
+	}
+	
+	// adds weight * F * conj(G) (the transform of C(f, g)) to (re, im), or i * weight * F * conj(G) when imaginary.
+	// F and G are in the half complex format of FFT.transformReal, the product at n - k is the conjugate of that at k
+	// (C(f, g) is real).
+	private static void correlate(double[][] fft, int f, int g, double weight, boolean imaginary, double[] re, double[] im) {
+		
+		int n = re.length;
+		int half = n >> 1;
+		double[] fc = fft[f];
+		double[] gc = fft[g];
+		
+		// coefficients 0 and n / 2 are real
+		for (int k = 0; k <= half; k += half) {
+			
+			if (imaginary)
+				im[k] += weight * fc[k] * gc[k];
+			else
+				re[k] += weight * fc[k] * gc[k];
+			
+		}
+		
+		for (int k = 1, j = n - 1; k < half; k++, j--) {
+			
+			double pr = weight * (fc[k] * gc[k] + fc[j] * gc[j]);
+			double pi = weight * (fc[j] * gc[k] - fc[k] * gc[j]);
+			
+			if (imaginary) {
+				re[k] -= pi;
+				im[k] += pr;
+				re[j] += pi;
+				im[j] += pr;
+			}
+			else {
+				re[k] += pr;
+				im[k] += pi;
+				re[j] += pr;
+				im[j] -= pi;
+			}
+			
+		}
+		
+	}
 
 }
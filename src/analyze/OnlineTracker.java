@@ -0,0 +1,372 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import analyze.ParticleTracker.Linking;
+
+/**
+ * Particle tracker that links the peaks one slice at a time, for movies that do not fit in a results table.
+ * 
+ * Only the trajectories that can still be linked (their last peak is within look ahead of the current slice) are
+ * kept. A trajectory is passed to the {@link TrajectorySink} as soon as it can no longer be linked, so the memory
+ * depends on the number of active trajectories and not on the length of the movie. The links are the same as those
+ * of {@link ParticleTracker#link(ij.measure.ResultsTable, int, double, Linking)}: greedy linking takes the links in
+ * the order of slice gap and distance, global linking takes the links with the minimal total cost. With a look ahead
+ * of one slice both trackers find the same trajectories.
+ * 
+ * With a motion model every trajectory predicts the position of its next peak with a Kalman filter (per axis, for
+ * Brownian motion the state is the position, for constant velocity the position and the velocity). A peak is a
+ * candidate when its Mahalanobis distance to the predicted position is within the 99% gate (chi-square with 2
+ * degrees of freedom) and within max step size, so the gate of a well predicted trajectory shrinks and a directed
+ * trajectory is searched ahead of its last peak. The costs of the links are the squared Mahalanobis distances.
+ * 
+ * <pre>
+ * OnlineTracker tracker = new OnlineTracker(lookAhead, maxStepSize, Linking.GLOBAL, sink);
+ * for every slice (in increasing order)
+ *     tracker.add(slice, x, y, count);
+ * tracker.finish();
+ * </pre>
+ */
+public class OnlineTracker {
+	
+	public enum Motion {
+		NONE,
+		BROWNIAN,
+		CONSTANT_VELOCITY;
+		
+		public static String[] getNames() {
+			
+			Motion[] motions = values();
+			String[] names = new String[motions.length];
+			
+			for (int i = 0; i < names.length; i++)
+				names[i] = motions[i].toString();
+			
+			return names;
+		}
+		
+	};
+	
+	// 99% quantile of the chi-square distribution with 2 degrees of freedom
+	private static final double GATE = 9.21;
+	
+	private static class Track {
+		
+		int[] slices = new int[4];
+		int[] indices = new int[4];
+		double[] x = new double[4];
+		double[] y = new double[4];
+		int length;
+		
+		// kalman filter: estimated position and velocity, and their covariance (the same for x and y)
+		double px, py, vx, vy;
+		double pp, pv, vv;
+		
+		// prediction for the next slice
+		double predictedX, predictedY, innovationVariance;
+		
+		void add(int slice, int index, double x, double y) {
+			
+			if (length == slices.length) {
+				slices = java.util.Arrays.copyOf(slices, 2 * length);
+				indices = java.util.Arrays.copyOf(indices, 2 * length);
+				this.x = java.util.Arrays.copyOf(this.x, 2 * length);
+				this.y = java.util.Arrays.copyOf(this.y, 2 * length);
+			}
+			
+			slices[length] = slice;
+			indices[length] = index;
+			this.x[length] = x;
+			this.y[length] = y;
+			length++;
+		}
+		
+	}
+	
+	private int lookAhead;
+	private double maxStepSize;
+	private Linking linking;
+	private TrajectorySink sink;
+	
+	private Motion motion = Motion.NONE;
+	private double motionNoise;
+	private double localizationPrecision;
+	
+	private ArrayList<Track> tracks = new ArrayList<Track>();
+	private ArrayList<Track> unused = new ArrayList<Track>();
+	private int trajectoryCount = 0;
+	private int lastSlice = Integer.MIN_VALUE;
+	
+	private SpatialGrid grid = new SpatialGrid();
+	private LinearAssignment assignment = new LinearAssignment();
+	private ArrayList<double[]> links = new ArrayList<double[]>();
+	private int[] assigned = new int[0];
+	private boolean[] linked = new boolean[0];
+	
+	public OnlineTracker(int lookAhead, double maxStepSize, Linking linking, TrajectorySink sink) {
+		this.lookAhead = lookAhead;
+		this.maxStepSize = maxStepSize;
+		this.linking = linking;
+		this.sink = sink;
+	}
+	
+	/**
+	 * Sets the motion model: the standard deviation of the displacement (Brownian motion) or of the change in velocity
+	 * (constant velocity) per slice and the localization precision, in pixels.
+	 */
+	public void setMotion(Motion motion, double motionNoise, double localizationPrecision) {
+		this.motion = motion;
+		this.motionNoise = motionNoise;
+		this.localizationPrecision = localizationPrecision;
+	}
+	
+	/**
+	 * Links the first count peaks of x and y in a slice to the active trajectories. The slices have to be added in
+	 * increasing order.
+	 */
+	public void add(int slice, double[] x, double[] y, int count) {
+		
+		if (slice <= lastSlice)
+			throw new IllegalArgumentException("slice " + slice + " is added after slice " + lastSlice);
+		
+		lastSlice = slice;
+		
+		// finish the trajectories that can no longer be linked (in the order of their last peak)
+		int active = 0;
+		
+		for (Track track: tracks) {
+			if (slice - track.slices[track.length - 1] > lookAhead)
+				finish(track);
+			else
+				tracks.set(active++, track);
+		}
+		
+		while (tracks.size() > active)
+			tracks.remove(tracks.size() - 1);
+		
+		// all possible links from the last peak of a trajectory to a peak in this slice
+		grid.build(x, y, 0, count, maxStepSize);
+		links.clear();
+		
+		double maxStepSizeSq = maxStepSize * maxStepSize;
+		
+		for (int i = 0; i < active; i++) {
+			
+			Track track = tracks.get(i);
+			int last = track.length - 1;
+			int gap = slice - track.slices[last];
+			double x1 = track.x[last];
+			double y1 = track.y[last];
+			
+			// without a motion model the costs are relative to max step size, so the gate is 1 as well
+			double scale = 1 / maxStepSizeSq;
+			double gate = 1;
+			
+			if (motion != Motion.NONE) {
+				predict(track, gap);
+				x1 = track.predictedX;
+				y1 = track.predictedY;
+				scale = 1 / track.innovationVariance;
+				gate = GATE;
+			}
+			
+			int column = grid.getColumn(x1);
+			int row = grid.getRow(y1);
+			
+			for (int cy = row - 1; cy <= row + 1; cy++) {
+				for (int cx = column - 1; cx <= column + 1; cx++) {
+					for (int k = grid.getStart(cx, cy); k < grid.getEnd(cx, cy); k++) {
+						
+						int j = grid.get(k);
+						double dx = x[j] - x1;
+						double dy = y[j] - y1;
+						double dsq = dx * dx + dy * dy;
+						
+						if (dsq < maxStepSizeSq && dsq * scale < gate)
+							links.add(new double[]{gap, dsq * scale / gate, i, j});
+						
+					}
+				}
+			}
+			
+		}
+		
+		if (linked.length < count)
+			linked = new boolean[count];
+		
+		for (int j = 0; j < count; j++)
+			linked[j] = false;
+		
+		if (linking == Linking.GLOBAL)
+			linkGlobal(slice, x, y, count, active);
+		else
+			linkGreedy(slice, x, y);
+		
+		// peaks that are not linked start a trajectory
+		for (int j = 0; j < count; j++) {
+			
+			if (!linked[j]) {
+				Track track = unused.isEmpty() ? new Track() : unused.remove(unused.size() - 1);
+				track.add(slice, j, x[j], y[j]);
+				start(track);
+				tracks.add(track);
+			}
+			
+		}
+		
+	}
+	
+	private void linkGreedy(int slice, double[] x, double[] y) {
+		
+		Collections.sort(links, new Comparator<double[]>() {
+			
+			@Override
+			public int compare(double[] o1, double[] o2) {
+				
+				for (int i = 0; i < o1.length; i++) {
+					if (o1[i] != o2[i])
+						return Double.compare(o1[i], o2[i]);
+				}
+				
+				return 0;
+			}
+			
+		});
+		
+		for (double[] link: links) {
+			
+			Track track = tracks.get((int)link[2]);
+			int j = (int)link[3];
+			
+			// a track that was extended ends in this slice
+			if (track.slices[track.length - 1] != slice && !linked[j]) {
+				track.add(slice, j, x[j], y[j]);
+				update(track);
+				linked[j] = true;
+			}
+			
+		}
+		
+	}
+	
+	// (the costs are relative to the gate, as in ParticleTracker.link a skipped slice costs one gate)
+	private void linkGlobal(int slice, double[] x, double[] y, int count, int active) {
+		
+		assignment.clear(active, count);
+		
+		for (double[] link: links)
+			assignment.add((int)link[2], (int)link[3], link[1] + link[0] - 1);
+		
+		if (assigned.length < active)
+			assigned = new int[active];
+		
+		assignment.solve(lookAhead, lookAhead, assigned);
+		
+		for (int i = 0; i < active; i++) {
+			
+			int j = assigned[i];
+			
+			if (j != -1) {
+				Track track = tracks.get(i);
+				track.add(slice, j, x[j], y[j]);
+				update(track);
+				linked[j] = true;
+			}
+			
+		}
+		
+	}
+	
+	// the velocity of a new trajectory is unknown, its variance is chosen such that the gate is about max step size
+	private void start(Track track) {
+		
+		track.px = track.x[0];
+		track.py = track.y[0];
+		track.vx = 0;
+		track.vy = 0;
+		track.pp = localizationPrecision * localizationPrecision;
+		track.pv = 0;
+		track.vv = motion == Motion.CONSTANT_VELOCITY ? maxStepSize * maxStepSize / GATE : 0;
+	}
+	
+	// predicts the position after gap slices (the state itself is only changed by update)
+	private void predict(Track track, int gap) {
+		
+		double q = motionNoise * motionNoise;
+		double pp = track.pp + 2 * gap * track.pv + gap * gap * track.vv;
+		
+		// process noise of a random displacement or of a random change in velocity (white noise acceleration)
+		if (motion == Motion.CONSTANT_VELOCITY)
+			pp += q * gap * gap * gap / 3;
+		else
+			pp += q * gap;
+		
+		track.predictedX = track.px + gap * track.vx;
+		track.predictedY = track.py + gap * track.vy;
+		track.innovationVariance = pp + localizationPrecision * localizationPrecision;
+	}
+	
+	// corrects the prediction with the peak that was added last
+	private void update(Track track) {
+		
+		if (motion == Motion.NONE)
+			return;
+		
+		int last = track.length - 1;
+		int gap = track.slices[last] - track.slices[last - 1];
+		double q = motionNoise * motionNoise;
+		double pp = track.pp + 2 * gap * track.pv + gap * gap * track.vv;
+		double pv = track.pv + gap * track.vv;
+		double vv = track.vv;
+		
+		if (motion == Motion.CONSTANT_VELOCITY) {
+			pp += q * gap * gap * gap / 3;
+			pv += q * gap * gap / 2;
+			vv += q * gap;
+		}
+		else {
+			pp += q * gap;
+		}
+		
+		double s = pp + localizationPrecision * localizationPrecision;
+		double ex = track.x[last] - (track.px + gap * track.vx);
+		double ey = track.y[last] - (track.py + gap * track.vy);
+		
+		track.px += gap * track.vx + pp / s * ex;
+		track.py += gap * track.vy + pp / s * ey;
+		track.vx += pv / s * ex;
+		track.vy += pv / s * ey;
+		track.pp = pp - pp * pp / s;
+		track.pv = pv - pp * pv / s;
+		track.vv = vv - pv * pv / s;
+	}
+	
+	/**
+	 * Passes all remaining trajectories to the sink.
+	 */
+	public void finish() {
+		
+		for (Track track: tracks)
+			finish(track);
+		
+		tracks.clear();
+	}
+	
+	private void finish(Track track) {
+		
+		sink.add(track.length > 1 ? trajectoryCount++ : -1, track.slices, track.indices, track.x, track.y, track.length);
+		
+		track.length = 0;
+		unused.add(track);
+	}
+	
+	/**
+	 * Returns the number of trajectories (with more than one peak) passed to the sink.
+	 */
+	public int getTrajectoryCount() {
+		return trajectoryCount;
+	}
+	
+}
@@ -8,6 +8,7 @@ import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 import ij.process.ImageProcessor;
+import util.ResultsTableColumns;
 
 public class PalmReconstructor implements PlugIn {
 
@@ -43,16 +44,18 @@ public class PalmReconstructor implements PlugIn {
 			return;
 		}
 		
-		double xMin = table.getValue("x", 0);
-		double yMin = table.getValue("y", 0);
+		double[] xs = ResultsTableColumns.get(table, "x");
+		double[] ys = ResultsTableColumns.get(table, "y");
+		double xMin = xs[0];
+		double yMin = ys[0];
 		double xMax = xMin;
 		double yMax = yMin;
 		
 		// get minimum and maximum x and y values from the results table
 		for (int row = 1; row < table.getCounter(); row++) {
 			
-			double x = table.getValue("x", row);
-			double y = table.getValue("y", row);
+			double x = xs[row];
+			double y = ys[row];
 			
 			if (x < xMin) xMin = x;
 			if (y < yMin) yMin = y;
@@ -95,12 +98,34 @@ public class PalmReconstructor implements PlugIn {
 		ImagePlus imp = IJ.createImage("reconstruction", "32-bit", width, height, 1);
 		ImageProcessor ip = imp.getProcessor();
 		
+		render(table, ip, xMin, yMin, magnification, type);
+		
+		Calibration c = imp.getCalibration();
+		c.xOrigin = -xMin * magnification;
+		c.yOrigin = -yMin * magnification;
+		c.pixelWidth = 1 / magnification;
+		c.pixelHeight = 1 / magnification;
+		
+		imp.show();
+		IJ.run("Red Hot");
+	}
+	
+	/**
+	 * Renders the peaks of the table into the image processor, pixel (0, 0) corresponds to (xMin, yMin).
+	 */
+	public static void render(ResultsTable table, ImageProcessor ip, double xMin, double yMin, double magnification, Type type) {
+		
+		double[] xs = ResultsTableColumns.get(table, "x");
+		double[] ys = ResultsTableColumns.get(table, "y");
+		double[] errorXs = ResultsTableColumns.get(table, "error_x");
+		double[] errorYs = ResultsTableColumns.get(table, "error_y");
+		
 		for (int row = 0; row < table.getCounter(); row++) {
 			
-			double x = table.getValue("x", row);
-			double y = table.getValue("y", row);
-			double errorX = table.getValue("error_x", row) * magnification;
-			double errorY = table.getValue("error_y", row) * magnification;
+			double x = xs[row];
+			double y = ys[row];
+			double errorX = errorXs[row] * magnification;
+			double errorY = errorYs[row] * magnification;
 			
 			int x0 = (int)((x - xMin) * magnification);
 			int y0 = (int)((y - yMin) * magnification);
@@ -130,14 +155,6 @@ public class PalmReconstructor implements PlugIn {
 			
 		}
 		
-		Calibration c = imp.getCalibration();
-		c.xOrigin = -xMin * magnification;
-		c.yOrigin = -yMin * magnification;
-		c.pixelWidth = 1 / magnification;
-		c.pixelHeight = 1 / magnification;
-		
-		imp.show();
-		IJ.run("Red Hot");
 	}
 	
 	public static double normalDistribution(double x, double y, double sigmaX, double sigmaY) {
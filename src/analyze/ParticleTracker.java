@@ -1,26 +1,71 @@
 package analyze;
 
-import java.awt.Polygon;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import analyze.OnlineTracker.Motion;
+import analyze.TrajectoryOverlay.Colouring;
 import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.WindowManager;
 import ij.gui.GenericDialog;
-import ij.gui.PolygonRoi;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.RoiManager;
+import util.ResultsTableColumns;
+import util.ResultsTableFilter;
 import util.ResultsTableSorter;
+import util.TrajectoryIndex;
 
 public class ParticleTracker implements PlugIn {
 
+	/**
+	 * GREEDY takes the possible links in the order of slice gap and distance, GLOBAL takes the set of links with
+	 * the minimal total cost (linear assignment) between every slice and the slices within look ahead.
+	 */
+	public enum Linking {
+		GREEDY,
+		GLOBAL;
+		
+		public static String[] getNames() {
+			
+			Linking[] linkings = values();
+			String[] names = new String[linkings.length];
+			
+			for (int i = 0; i < names.length; i++)
+				names[i] = linkings[i].toString();
+			
+			return names;
+		}
+		
+	};
+	
+	// number of slices of which every thread finds the possible links before the links are made
+	private static final int SLICES_PER_THREAD = 16;
+	
 	private int lookAhead = 1;
 	private double maxStepSize = 8;
+	private Linking linking = Linking.GREEDY;
+	private Motion motion = Motion.NONE;
+	private double motionNoise = 1;
+	private double localizationPrecision = 0.1;
+	private int maxGap = 0;
+	private boolean mergesAndSplits = false;
 	private boolean showTrajectories = true;
+	private Colouring colouring = Colouring.TRAJECTORY;
+	private boolean addToRoiManager = false;
 	private boolean keepNonTrajectories = false;
 	
 	@Override
@@ -36,7 +81,15 @@ public class ParticleTracker implements PlugIn {
 		GenericDialog dialog = new GenericDialog("Particle Tracker");
 		dialog.addNumericField("slice_to_look_ahead (for blinking)", lookAhead, 0);
 		dialog.addNumericField("max_step_size (in pixels)", maxStepSize, 2);
+		dialog.addChoice("linking", Linking.getNames(), linking.toString());
+		dialog.addChoice("motion_model", Motion.getNames(), motion.toString());
+		dialog.addNumericField("motion_noise (in pixels)", motionNoise, 2);
+		dialog.addNumericField("localization_precision (in pixels)", localizationPrecision, 2);
+		dialog.addNumericField("max_gap (slices, for closing gaps between trajectories)", maxGap, 0);
+		dialog.addCheckbox("merges_and_splits", mergesAndSplits);
 		dialog.addCheckbox("show_trajectories", showTrajectories);
+		dialog.addChoice("colour_by", Colouring.getNames(), colouring.toString());
+		dialog.addCheckbox("add_trajectories_to_roi_manager", addToRoiManager);
 		dialog.addCheckbox("keep_non_trajectories", keepNonTrajectories);
 		dialog.showDialog();
 		
@@ -45,66 +98,238 @@ public class ParticleTracker implements PlugIn {
 		
 		lookAhead = (int)dialog.getNextNumber();
 		maxStepSize = dialog.getNextNumber();
+		linking = Linking.valueOf(Linking.class, dialog.getNextChoice());
+		motion = Motion.valueOf(Motion.class, dialog.getNextChoice());
+		motionNoise = dialog.getNextNumber();
+		localizationPrecision = dialog.getNextNumber();
+		maxGap = (int)dialog.getNextNumber();
+		mergesAndSplits = dialog.getNextBoolean();
 		showTrajectories = dialog.getNextBoolean();
+		colouring = Colouring.valueOf(Colouring.class, dialog.getNextChoice());
+		addToRoiManager = dialog.getNextBoolean();
 		keepNonTrajectories = dialog.getNextBoolean();
 		
+		link(table, lookAhead, maxStepSize, linking, motion, motionNoise, localizationPrecision);
+		
+		if (maxGap > 0 || mergesAndSplits)
+			GapClosing.close(table, maxGap, maxStepSize, mergesAndSplits);
+		
+		// sort on slice column
+		ResultsTableSorter.sort(table, true, "trajectory", "slice");
+		
+		// delete particles (rows) that don't belong to any trajectory
+		if (!keepNonTrajectories) {
+			
+			int[] trajectories = ResultsTableColumns.getInts(table, "trajectory");
+			boolean[] keep = new boolean[trajectories.length];
+			
+			for (int row = 0; row < trajectories.length; row++)
+				keep[row] = trajectories[row] != -1;
+			
+			ResultsTableFilter.compact(table, keep);
+		}
+		
+		if (showTrajectories && table.getCounter() > 0) {
+			
+			double[] xs = ResultsTableColumns.get(table, "x");
+			double[] ys = ResultsTableColumns.get(table, "y");
+			int[] slices = ResultsTableColumns.getInts(table, "slice");
+			int[] trajectories = ResultsTableColumns.getInts(table, "trajectory");
+			ImagePlus imp = WindowManager.getCurrentImage();
+			
+			if (imp != null)
+				imp.setOverlay(TrajectoryOverlay.create(xs, ys, slices, trajectories, colouring, 0.5));
+			
+			// a roi per trajectory only on request (the roi manager does not handle many rois) or when there is no
+			// image for the overlay
+			if (addToRoiManager || imp == null) {
+				
+				RoiManager roiManager = RoiManager.getInstance();
+				
+				if (roiManager == null)
+					roiManager = new RoiManager();
+				
+				for (int from = 0, to = 0; from < trajectories.length; from = to) {
+					
+					while (to < trajectories.length && trajectories[to] == trajectories[from])
+						to++;
+					
+					if (trajectories[from] >= 0)
+						roiManager.addRoi(TrajectoryOverlay.getRoi(xs, ys, from, to));
+				}
+				
+			}
+			
+		}
+		
+		// the rows of the trajectories for the analyses of the table
+		TrajectoryIndex.create(table);
+		
+		table.show("Results");
+		
+	}
+
+	/**
+	 * Links the peaks in the table (sorted on slice afterwards) into trajectories and fills the trajectory,
+	 * step size and trajectory length columns.
+	 * 
+	 * @return the number of trajectories
+	 */
+	public static int link(ResultsTable table, int lookAhead, double maxStepSize) {
+		return link(table, lookAhead, maxStepSize, Linking.GREEDY);
+	}
+	
+	/**
+	 * Links the peaks in the table with the given linking. With global linking a link over a gap of slices costs
+	 * its squared step size plus max_step_size^2 for every skipped slice (so links to the next slice are preferred)
+	 * and a peak that is not linked costs lookAhead * max_step_size^2 (so every possible link is cheaper).
+	 * 
+	 * @return the number of trajectories
+	 */
+	public static int link(ResultsTable table, int lookAhead, double maxStepSize, Linking linking) {
+		return link(table, lookAhead, maxStepSize, linking, Motion.NONE, 0, 0);
+	}
+	
+	/**
+	 * Links the peaks in the table with a motion model (see {@link OnlineTracker}), the peaks are then gated and
+	 * linked by their distance to the position predicted by the trajectory.
+	 * 
+	 * @return the number of trajectories
+	 */
+	public static int link(ResultsTable table, int lookAhead, double maxStepSize, Linking linking, Motion motion, double motionNoise, double localizationPrecision) {
+		
 		// sort on slice
 		ResultsTableSorter.sort(table, true, "slice");
 		
-		// initialize trajectory column and set step size to 0
-		for (int row = 0; row < table.getCounter(); row++) {
-			table.setValue("trajectory", row, -1);
-			table.setValue("step_size", row, 0);
-		}
+		// the tracker works on copies of the columns, the result columns are written back at the end
+		int rows = table.getCounter();
+		double[] xs = ResultsTableColumns.get(table, "x");
+		double[] ys = ResultsTableColumns.get(table, "y");
+		int[] slices = ResultsTableColumns.getInts(table, "slice");
+		
+		// initialize trajectory column and set step size to 0 (the other columns keep the values of unlinked rows)
+		int[] trajectories = new int[rows];
+		double[] stepSizes = new double[rows];
+		double[] dxs = ResultsTableColumns.get(table, "dx", 0);
+		double[] dys = ResultsTableColumns.get(table, "dy", 0);
+		double[] displacements = ResultsTableColumns.get(table, "displacement_sq", 0);
+		
+		Arrays.fill(trajectories, -1);
+		
+		int trajectoryCount = 0;
 		
 		// determine which rows belong to which slice
 		ArrayList<Integer> offsets = new ArrayList<Integer>();
 		offsets.add(0);
 		
-		for (int row = 1; row < table.getCounter(); row++) {
-			int s0 = (int)table.getValue("slice", row - 1);
-			int s1 = (int)table.getValue("slice", row);
-			
-			if (s0 != s1)
+		for (int row = 1; row < rows; row++) {
+			if (slices[row - 1] != slices[row])
 				offsets.add(row);
 		}
 		
-		offsets.add(table.getCounter());
-		
-		
-		// find all trajectories
-		int trajectoryCount = 0;
+		offsets.add(rows);
 		
-		for (int i = 0; i < offsets.size() - 1; i++) {
+		if (motion != Motion.NONE && rows > 0) {
 			
-			int from = offsets.get(i);
-			int to = offsets.get(i + 1);
+			trajectoryCount = track(xs, ys, slices, offsets, lookAhead, maxStepSize, linking, motion, motionNoise, localizationPrecision,
+					trajectories, stepSizes, dxs, dys, displacements);
+			setColumns(table, trajectoryCount, trajectories, stepSizes, dxs, dys, displacements);
 			
-			// make a list of all possible links
-			ArrayList<double[]> links = new ArrayList<double[]>();
+			return trajectoryCount;
+		}
+		
+		// (global linking) the assignment problem is reused for every slice, rows that already have a predecessor
+		// (over a gap of slices) are not linked again
+		LinearAssignment assignment = new LinearAssignment();
+		int[] assigned = new int[0];
+		boolean[] hasPredecessor = new boolean[rows];
+		double maxStepSizeSq = maxStepSize * maxStepSize;
+		
+		// the possible links of a slice only depend on the positions, so they are found (and sorted) in parallel
+		// for a batch of slices, the links are then made one slice after the other
+		int sliceCount = offsets.size() - 1;
+		int threads = Math.max(1, Math.min(Prefs.getThreads(), sliceCount));
+		ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		
+		try {
 			
-			for (int row1 = from; row1 < to; row1++) {
+			for (int first = 0; first < sliceCount; first += SLICES_PER_THREAD * threads) {
 				
-				int s1 = (int)table.getValue("slice", row1);
-				double x1 = table.getValue("x", row1);
-				double y1 = table.getValue("y", row1);
+				int last = Math.min(sliceCount, first + SLICES_PER_THREAD * threads);
+				List<ArrayList<double[]>> batch = findLinks(xs, ys, slices, offsets, first, last, lookAhead, maxStepSize, linking, executor, threads);
 				
-				for (int row2 = to; row2 < table.getCounter(); row2++) {
+				for (int i = first; i < last; i++) {
 					
-					int s2 = (int)table.getValue("slice", row2);
-					double x2 = table.getValue("x", row2);
-					double y2 = table.getValue("y", row2);
+					int from = offsets.get(i);
+					int to = offsets.get(i + 1);
+					ArrayList<double[]> links = batch.get(i - first);
 					
-					if (s2 - s1 > lookAhead)
-						break;
+					if (linking == Linking.GLOBAL) {
+						
+						// rows of the slices within look ahead
+						int end = to;
+						
+						while (end < rows && slices[end] - slices[from] <= lookAhead)
+							end++;
+						
+						assignment.clear(to - from, end - to);
+						
+						for (double[] link: links) {
+							if (!hasPredecessor[(int)link[3]])
+								assignment.add((int)link[2] - from, (int)link[3] - to, link[1] + (link[0] - 1) * maxStepSizeSq);
+						}
+						
+						if (assigned.length < to - from)
+							assigned = new int[to - from];
+						
+						assignment.solve(lookAhead * maxStepSizeSq, lookAhead * maxStepSizeSq, assigned);
+						
+						for (int r1 = from; r1 < to; r1++) {
+							
+							if (assigned[r1 - from] == -1)
+								continue;
+							
+							int r2 = to + assigned[r1 - from];
+							
+							if (trajectories[r1] == -1)
+								trajectories[r1] = trajectoryCount++;
+							
+							trajectories[r2] = trajectories[r1];
+							dxs[r2] = xs[r2] - xs[r1];
+							dys[r2] = ys[r2] - ys[r1];
+							displacements[r2] = dxs[r2] * dxs[r2] + dys[r2] * dys[r2];
+							stepSizes[r2] = Math.sqrt(displacements[r2]);
+							hasPredecessor[r2] = true;
+						}
+						
+						continue;
+					}
 					
-					double dx = x2 - x1;
-					double dy = y2 - y1;
-					double dsq = dx * dx + dy * dy;
+					// filter out all links that are not possible (the links are sorted on slice gap and distance)
+					Set<Integer> linked = new HashSet<Integer>();
 					
-					if (dsq < maxStepSize * maxStepSize) {
+					for (double[] link: links) {
 						
-						links.add(new double[]{s2 - s1, dsq, row1, row2, dx, dy});
+						int r1 = (int)link[2];
+						int r2 = (int)link[3];
+						int t1 = trajectories[r1];
+						
+						if (!linked.contains(r1) && !linked.contains(r2)) {
+		
+							if (t1 == -1) {
+								t1 = trajectoryCount++;
+								trajectories[r1] = t1;
+							}
+							
+							trajectories[r2] = t1;
+							dxs[r2] = link[4];
+							dys[r2] = link[5];
+							stepSizes[r2] = Math.sqrt(link[1]);
+							displacements[r2] = link[1];
+							
+							linked.add(r1);
+							linked.add(r2);
+						}
 						
 					}
 					
@@ -112,110 +337,222 @@ public class ParticleTracker implements PlugIn {
 				
 			}
 			
+		}
+		finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+		
+		setColumns(table, trajectoryCount, trajectories, stepSizes, dxs, dys, displacements);
+		
+		return trajectoryCount;
+	}
+	
+	// finds the possible links of the slices first to last (exclusive), the slices are divided over the threads
+	private static List<ArrayList<double[]>> findLinks(final double[] xs, final double[] ys, final int[] slices, final ArrayList<Integer> offsets,
+			final int first, final int last, final int lookAhead, final double maxStepSize, final Linking linking, ExecutorService executor, final int threads) {
+		
+		final List<ArrayList<double[]>> batch = new ArrayList<ArrayList<double[]>>(Collections.<ArrayList<double[]>>nCopies(last - first, null));
+		
+		if (executor == null) {
+			
+			SpatialGrid grid = new SpatialGrid();
+			
+			for (int i = first; i < last; i++)
+				batch.set(i - first, findLinks(xs, ys, slices, offsets.get(i), offsets.get(i + 1), lookAhead, maxStepSize, linking, grid));
+			
+			return batch;
+		}
+		
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		
+		for (int thread = 0; thread < threads; thread++) {
+			
+			final int firstOfThread = first + thread;
+			
+			tasks.add(new Callable<Void>() {
+				
+				@Override
+				public Void call() {
+					
+					SpatialGrid grid = new SpatialGrid();
+					
+					for (int i = firstOfThread; i < last; i += threads)
+						batch.set(i - first, findLinks(xs, ys, slices, offsets.get(i), offsets.get(i + 1), lookAhead, maxStepSize, linking, grid));
+					
+					return null;
+				}
+				
+			});
+			
+		}
+		
+		try {
+			for (Future<Void> future: executor.invokeAll(tasks))
+				future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		
+		return batch;
+	}
+	
+	// finds the possible links of the rows from (inclusive) to (exclusive) of a slice to the rows of the next slices
+	// within look ahead, for greedy linking in the order in which they are made
+	private static ArrayList<double[]> findLinks(double[] xs, double[] ys, int[] slices, int from, int to, int lookAhead, double maxStepSize,
+			Linking linking, SpatialGrid grid) {
+		
+		// rows of the slices within look ahead
+		int end = to;
+		
+		while (end < slices.length && slices[end] - slices[from] <= lookAhead)
+			end++;
+		
+		// the rows of the next slices are bucketed in a grid with cells of max_step_size, so only the peaks in the
+		// 3 x 3 cells around a peak have to be compared with it
+		grid.build(xs, ys, to, end, maxStepSize);
+		
+		// make a list of all possible links
+		ArrayList<double[]> links = new ArrayList<double[]>();
+		
+		for (int row1 = from; row1 < to; row1++) {
+			
+			int s1 = slices[row1];
+			double x1 = xs[row1];
+			double y1 = ys[row1];
+			int column = grid.getColumn(x1);
+			int row = grid.getRow(y1);
+			
+			for (int cy = row - 1; cy <= row + 1; cy++) {
+				for (int cx = column - 1; cx <= column + 1; cx++) {
+					for (int k = grid.getStart(cx, cy); k < grid.getEnd(cx, cy); k++) {
+						
+						int row2 = grid.get(k);
+						double dx = xs[row2] - x1;
+						double dy = ys[row2] - y1;
+						double dsq = dx * dx + dy * dy;
+						
+						if (dsq < maxStepSize * maxStepSize) {
+							
+							links.add(new double[]{slices[row2] - s1, dsq, row1, row2, dx, dy});
+							
+						}
+						
+					}
+				}
+			}
+			
+		}
+		
+		if (linking == Linking.GREEDY) {
+			
 			// sort all possible links on distance (or slice number)
 			Collections.sort(links, new Comparator<double[]>(){
-
+	
 				@Override
 				public int compare(double[] o1, double[] o2) {
 					if (o1[0] != o2[0])
 						return Double.compare(o1[0], o2[0]);
 					
-					return Double.compare(o1[1], o2[1]);
+					if (o1[1] != o2[1])
+						return Double.compare(o1[1], o2[1]);
+					
+					// equal distances in the order of the rows (the grid does not list the links in row order)
+					if (o1[2] != o2[2])
+						return Double.compare(o1[2], o2[2]);
+					
+					return Double.compare(o1[3], o2[3]);
 				}
 				
 			});
 			
-			// filter out all links that are not possible
-			Set<Integer> linked = new HashSet<Integer>();
+		}
+		
+		return links;
+	}
+	
+	// links the slices one at a time with an online tracker that writes the trajectories into the columns
+	private static int track(final double[] xs, final double[] ys, int[] slices, ArrayList<Integer> offsets, int lookAhead, double maxStepSize,
+			Linking linking, Motion motion, double motionNoise, double localizationPrecision,
+			final int[] trajectories, final double[] stepSizes, final double[] dxs, final double[] dys, final double[] displacements) {
+		
+		// first row of every slice, for finding the rows of the peaks of a trajectory
+		final int[] sliceNumbers = new int[offsets.size() - 1];
+		final int[] sliceOffsets = new int[offsets.size() - 1];
+		
+		for (int i = 0; i < sliceNumbers.length; i++) {
+			sliceNumbers[i] = slices[offsets.get(i)];
+			sliceOffsets[i] = offsets.get(i);
+		}
+		
+		OnlineTracker tracker = new OnlineTracker(lookAhead, maxStepSize, linking, new TrajectorySink() {
 			
-			for (double[] link: links) {
+			@Override
+			public void add(int trajectory, int[] slices, int[] indices, double[] x, double[] y, int length) {
 				
-				int r1 = (int)link[2];
-				int r2 = (int)link[3];
-				int t1 = (int)table.getValue("trajectory", r1);
+				int previous = -1;
 				
-				if (!linked.contains(r1) && !linked.contains(r2)) {
-
-					if (t1 == -1) {
-						t1 = trajectoryCount++;
-						table.setValue("trajectory", r1, t1);						
-					}
+				for (int i = 0; i < length; i++) {
+					
+					int row = sliceOffsets[Arrays.binarySearch(sliceNumbers, slices[i])] + indices[i];
+					trajectories[row] = trajectory;
 					
-					table.setValue("trajectory", r2, t1);
-					table.setValue("dx", r2, link[4]);
-					table.setValue("dy", r2, link[5]);
-					table.setValue("step_size", r2, Math.sqrt(link[1]));
-					table.setValue("displacement_sq", r2, link[1]);
+					if (previous != -1) {
+						dxs[row] = xs[row] - xs[previous];
+						dys[row] = ys[row] - ys[previous];
+						displacements[row] = dxs[row] * dxs[row] + dys[row] * dys[row];
+						stepSizes[row] = Math.sqrt(displacements[row]);
+					}
 					
-					linked.add(r1);
-					linked.add(r2);
+					previous = row;
 				}
 				
 			}
 			
-		}
+		});
 		
-		// add trajectory length column
-		int[] trajectoryLength = new int[trajectoryCount];
+		tracker.setMotion(motion, motionNoise, localizationPrecision);
 		
-		for (int row = 0; row < table.getCounter(); row++) {
-			int trajectory = (int)table.getValue("trajectory", row);
-			
-			if (trajectory >= 0)
-				trajectoryLength[trajectory]++;
+		for (int i = 0; i < sliceNumbers.length; i++) {
+			int from = offsets.get(i);
+			int to = offsets.get(i + 1);
+			tracker.add(sliceNumbers[i], Arrays.copyOfRange(xs, from, to), Arrays.copyOfRange(ys, from, to), to - from);
 		}
 		
-		for (int row = 0; row < table.getCounter(); row++) {
-			int trajectory = (int)table.getValue("trajectory", row);
-			table.setValue("trajectory_length", row, trajectory >= 0 ? trajectoryLength[trajectory] : 1);
-		}
+		tracker.finish();
 		
-		// sort on slice column
-		ResultsTableSorter.sort(table, true, "trajectory", "slice");
+		return tracker.getTrajectoryCount();
+	}
+	
+	// writes the result columns and the trajectory length column
+	static void setColumns(ResultsTable table, int trajectoryCount, int[] trajectories, double[] stepSizes, double[] dxs, double[] dys, double[] displacements) {
 		
-		// delete particles (rows) that don't belong to any trajectory
-		if (!keepNonTrajectories) {
-			for (int row = table.getCounter() - 1; row >= 0; row--) {
-				if (table.getValue("trajectory", row) == -1)
-					table.deleteRow(row);
-			}
-		}
+		int rows = trajectories.length;
 		
-		if (showTrajectories && table.getCounter() > 0) {
-			
-			RoiManager roiManager = RoiManager.getInstance();
-			
-			if (roiManager == null)
-				roiManager = new RoiManager();
-			
-			Polygon poly = new Polygon();
-			double x = table.getValue("x", 0);
-			double y = table.getValue("y", 0);
-			poly.addPoint((int)x, (int)y);
-			
-			for (int row = 1; row < table.getCounter(); row++) {
-
-				x = table.getValue("x", row);
-				y = table.getValue("y", row);
-
-				if (table.getValue("trajectory", row) == table.getValue("trajectory", row - 1)) {
-					poly.addPoint((int)x, (int)y);
-				}
-				else {
-					roiManager.addRoi(new PolygonRoi(poly, PolygonRoi.POLYLINE));
-					
-					poly = new Polygon();
-					poly.addPoint((int)x, (int)y);
-				}
-			}
-			
-			roiManager.addRoi(new PolygonRoi(poly, PolygonRoi.POLYLINE));
-			roiManager.run("Show All");
-			
+		// add trajectory length column
+		int[] trajectoryLength = new int[trajectoryCount];
+		
+		for (int row = 0; row < rows; row++) {
+			if (trajectories[row] >= 0)
+				trajectoryLength[trajectories[row]]++;
 		}
 		
-		table.show("Results");
+		int[] lengths = new int[rows];
+		
+		for (int row = 0; row < rows; row++)
+			lengths[row] = trajectories[row] >= 0 ? trajectoryLength[trajectories[row]] : 1;
 		
+		ResultsTableColumns.set(table, "trajectory", trajectories);
+		ResultsTableColumns.set(table, "step_size", stepSizes);
+		ResultsTableColumns.set(table, "dx", dxs);
+		ResultsTableColumns.set(table, "dy", dys);
+		ResultsTableColumns.set(table, "displacement_sq", displacements);
+		ResultsTableColumns.set(table, "trajectory_length", lengths);
 	}
 
 }
@@ -40,11 +40,7 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 	private boolean isPreview = true;
 	
 	public PeakFinder() {
-		roiManager = RoiManager.getInstance();
 		
-		if (roiManager == null) {
-			roiManager = new RoiManager();
-		}
 	}
 	
 	public PeakFinder(boolean useDiscoidalAveraging, DiscoidalAveragingFilter filter,
@@ -97,7 +93,7 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 				for (Point p: peaks) {
 					Roi peakRoi = new Roi(p.x - selectionRadius, p.y - selectionRadius, selectionWidth, selectionWidth);
 					peakRoi.setPosition(ip.getSliceNumber());
-					roiManager.addRoi(peakRoi);
+					getRoiManager().addRoi(peakRoi);
 				}
 				
 			}
@@ -106,7 +102,29 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 		
 	}
 	
+	// the roi manager is only opened when peaks are added to it, so finding peaks also works headless
+	private synchronized RoiManager getRoiManager() {
+		
+		if (roiManager == null) {
+			roiManager = RoiManager.getInstance();
+			
+			if (roiManager == null)
+				roiManager = new RoiManager();
+		}
+		
+		return roiManager;
+	}
+	
 	public ArrayList<Point> findPeaks(ImageProcessor ip) {
+		return findPeaks(ip, null, null);
+	}
+	
+	/**
+	 * Finds the peaks and records the time spent in the filter and detection stages.
+	 */
+	public ArrayList<Point> findPeaks(ImageProcessor ip, FitStatistics statistics, FitStatistics.Slice slice) {
+		
+		long beginTime = System.nanoTime();
 		
 		ArrayList<Point> peaks = new ArrayList<Point>();
 		ImageProcessor duplicate = ip.duplicate();
@@ -115,6 +133,12 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 			filter.run(duplicate);
 		}
 		
+		if (statistics != null) {
+			long time = System.nanoTime();
+			statistics.recordStage(slice, FitStatistics.Stage.FILTER, time - beginTime);
+			beginTime = time;
+		}
+		
 		Rectangle roi = ip.getRoi();
 		double t = thresholdValue; 
 		
@@ -202,6 +226,9 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 			
 		}
 		
+		if (statistics != null)
+			statistics.recordStage(slice, FitStatistics.Stage.DETECTION, System.nanoTime() - beginTime);
+		
 		return peaks;
 	}
 
@@ -5,6 +5,7 @@ import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import process.DiscoidalAveragingFilter;
 import ij.IJ;
@@ -34,10 +35,32 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 	private int minimumDistance = Prefs.getInt("PeakFitter.minimumDistance", 8);
 	private int fitRadius = Prefs.getInt("PeakFitter.fitRadius", 4);
 	private boolean isRoiFit = false;
+	private boolean useFastMath = Prefs.getBoolean("PeakFitter.useFastMath", false);
+	private int verificationInterval = Prefs.getInt("PeakFitter.verificationInterval", 100);
+	private boolean recordStatistics = Prefs.getBoolean("PeakFitter.recordStatistics", false);
+	private boolean useBatchedFitting = Prefs.getBoolean("PeakFitter.useBatchedFitting", false);
+	
+	private FitStatistics statistics;
 	
 	private int totalFittedPeaks = 0;
 	private int foundPeaks = 0;
 	
+	// bounds and divergence detection of the fits
+	public static final double MIN_SIGMA = 0.1;
+	public static final double MAX_LAMBDA = 1e8;
+	
+	// a fit has converged when the sum of squares changes less than this fraction, which moves the
+	// parameters by less than a percent of their fitting errors
+	public static final double RELATIVE_PRECISION = 1e-6;
+	
+	// fast math verification (deviations are expressed in fitting errors of the double precision fit)
+	public static final double MAX_VERIFICATION_DEVIATION = 0.1;
+	
+	private AtomicInteger fastFits = new AtomicInteger();
+	private int verifiedFits = 0;
+	private int disagreeingFits = 0;
+	private double maxDeviation = 0;
+	
 	private double[] maxError = new double[] {
 			Prefs.getDouble("PeakFitter.maxErrorBaseline", 5000),
 			Prefs.getDouble("PeakFitter.maxErrorHeight", 5000),
@@ -49,32 +72,48 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 	
 	private PeakFinder peakFinder;
 	
-	private static LevenbergMarquardt lm = new LevenbergMarquardt() {
+	// solvers and data buffers of each thread, fitting a peak does not allocate memory
+	private static class Fitter {
 		
-		@Override
-		public double getValue(double[] x, double[] p) {
+		private LevenbergMarquardt lm = new Gaussian2D();
+		
+		private FastGaussian2D fastLm = new FastGaussian2D();
+		
+		private double[][] xs = new double[0][];
+		private double[] ys = new double[0];
+		
+		private double[] lower = new double[6];
+		private double[] upper = new double[6];
+		
+		private Fitter() {
 			
-			double dx = x[0] - p[2];
-			double dy = x[1] - p[3];
+			for (LevenbergMarquardt solver: new LevenbergMarquardt[] {lm, fastLm}) {
+				solver.lowerBounds = lower;
+				solver.upperBounds = upper;
+				solver.maxLambda = MAX_LAMBDA;
+				solver.relativePrecision = RELATIVE_PRECISION;
+			}
 			
-			return p[0] + p[1] * Math.exp(-((dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5])));
 		}
-
-		@Override
-		public void getGradient(double[] x, double[] p, double[] dyda) {
-			
-			double dx = x[0] - p[2];
-			double dy = x[1] - p[3];
+		
+		private void ensureCapacity(int n) {
 			
-			dyda[0] = 1;
-			dyda[1] = Math.exp(-((dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5])));
-			dyda[2] = (p[1] * dyda[1] * dx) / (p[4] * p[4]);
-			dyda[3] = (p[1] * dyda[1] * dy) / (p[5] * p[5]);
-			dyda[4] = (p[1] * dyda[1] * dx * dx) / (p[4] * p[4] * p[4]);
-			dyda[5] = (p[1] * dyda[1] * dy * dy) / (p[5] * p[5] * p[5]);
+			if (xs.length < n) {
+				xs = new double[n][2];
+				ys = new double[n];
+			}
 			
 		}
-
+		
+	}
+	
+	private static ThreadLocal<Fitter> fitters = new ThreadLocal<Fitter>() {
+		
+		@Override
+		protected Fitter initialValue() {
+			return new Fitter();
+		}
+		
 	};
 	
 	private ResultsTable table;
@@ -90,12 +129,35 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		if (imp.getRoi() != null)
 			roi = imp.getRoi().getBounds();
 		
-		ArrayList<Point> peaks = peakFinder.findPeaks(ip);
+		FitStatistics.Slice sliceStatistics = null;
+		
+		if (statistics != null)
+			sliceStatistics = statistics.beginSlice(ip.getSliceNumber());
+		
+		ArrayList<Point> peaks = peakFinder.findPeaks(ip, statistics, sliceStatistics);
+		
+		if (statistics != null)
+			statistics.recordCandidates(sliceStatistics, peaks.size());
+		
 		double[][] fitParameters = new double[peaks.size()][6];
 		double[][] fitErrors = new double[peaks.size()][6];
 		int fittedPeaks = 0;
 		
 		int fitWidth = fitRadius * 2 + 1;
+		
+		// windows that lie completely inside the image are fitted together (double precision only)
+		BatchedGaussianFitter batch = null;
+		
+		if (useBatchedFitting && !useFastMath)
+			batch = new BatchedGaussianFitter(fitWidth, fitWidth, peaks.size());
+		
+		double[] lower = new double[6];
+		double[] upper = new double[6];
+		
+		if (batch != null) {
+			batch.maxLambda = MAX_LAMBDA;
+			batch.relativePrecision = RELATIVE_PRECISION;
+		}
 
 		for (Point peak: peaks) {
 			
@@ -131,24 +193,62 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 			parameters[2] = peak.x;
 			parameters[3] = peak.y;
 			
-			fitPeak(ip, parameters, errors);
+			Rectangle window = ip.getRoi();
 			
-			boolean valid = true;
-			
-			for (int i = 0; valid && i < parameters.length; i++) {
-				
-				if (Double.isNaN(parameters[i]) || Double.isNaN(errors[i]) || Math.abs(errors[i]) > maxError[i])
-					valid = false;
-				
+			if (batch != null && window.width == fitWidth && window.height == fitWidth) {
+				getBounds(window, lower, upper);
+				batch.add(ip, window.x, window.y, parameters, lower, upper);
+				continue;
 			}
 			
+			double[] initial = null;
+			
+			if (useFastMath && verificationInterval > 0 && fastFits.incrementAndGet() % verificationInterval == 0)
+				initial = parameters.clone();
+			
+			long beginTime = System.nanoTime();
+			LevenbergMarquardt solver = fitPeak(ip, parameters, errors, useFastMath);
+			
+			int rejectionReason = getRejectionReason(solver.termination, parameters, errors);
+			boolean valid = rejectionReason == FitStatistics.NOT_REJECTED;
+			
+			if (statistics != null)
+				statistics.recordFit(sliceStatistics, solver, rejectionReason, System.nanoTime() - beginTime);
+			
+			if (initial != null)
+				verify(ip, initial, parameters, errors, valid);
+			
 			if (valid)
 				fittedPeaks++;
 			
 		}
 		
+		if (batch != null && batch.size() > 0) {
+			
+			long beginTime = System.nanoTime();
+			batch.solve();
+			long nanoseconds = (System.nanoTime() - beginTime) / batch.size();
+			
+			for (int i = 0; i < batch.size(); i++) {
+				
+				batch.getResult(i, fitParameters[fittedPeaks], fitErrors[fittedPeaks]);
+				
+				int rejectionReason = getRejectionReason(batch.getTermination(i), fitParameters[fittedPeaks], fitErrors[fittedPeaks]);
+				
+				if (statistics != null)
+					statistics.recordFit(sliceStatistics, batch.getIterations(i), batch.getRejectedSteps(i), rejectionReason, nanoseconds);
+				
+				if (rejectionReason == FitStatistics.NOT_REJECTED)
+					fittedPeaks++;
+			}
+			
+		}
+		
 		ip.setRoi(roi);
 		
+		if (statistics != null)
+			statistics.endSlice(sliceStatistics);
+		
 		if (isPreview) {
 			
 			Polygon poly = new Polygon();
@@ -178,6 +278,71 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		
 	}
 	
+	// returns the index of the rejection reason (see FitStatistics.REJECTION_REASONS)
+	private int getRejectionReason(LevenbergMarquardt.Termination termination, double[] parameters, double[] errors) {
+		
+		if (termination.isDivergent())
+			return FitStatistics.REJECTION_REASONS.length - 1;
+		
+		for (int i = 0; i < parameters.length; i++) {
+			
+			if (Double.isNaN(parameters[i]) || Double.isNaN(errors[i]))
+				return 0;
+			
+			if (Math.abs(errors[i]) > maxError[i])
+				return i + 1;
+			
+		}
+		
+		return FitStatistics.NOT_REJECTED;
+	}
+	
+	private boolean isValid(LevenbergMarquardt.Termination termination, double[] parameters, double[] errors) {
+		return getRejectionReason(termination, parameters, errors) == FitStatistics.NOT_REJECTED;
+	}
+	
+	// repeat a fast math fit in double precision and check whether both fits agree
+	private void verify(ImageProcessor ip, double[] initial, double[] parameters, double[] errors, boolean valid) {
+		
+		double[] errorsDouble = new double[errors.length];
+		
+		LevenbergMarquardt lm = fitPeak(ip, initial, errorsDouble, false);
+		
+		boolean agrees = valid == isValid(lm.termination, initial, errorsDouble);
+		double deviation = 0;
+		
+		if (agrees && valid) {
+			
+			for (int i = 0; i < parameters.length; i++) {
+				
+				double d = Math.abs(parameters[i] - initial[i]);
+				
+				// sigmas are only defined up to their sign
+				if (i >= 4)
+					d = Math.abs(Math.abs(parameters[i]) - Math.abs(initial[i]));
+				
+				// (a zero error only agrees with an identical parameter)
+				if (errorsDouble[i] != 0)
+					deviation = Math.max(deviation, d / Math.abs(errorsDouble[i]));
+				else if (d > 0)
+					deviation = Double.POSITIVE_INFINITY;
+			}
+			
+			agrees = deviation <= MAX_VERIFICATION_DEVIATION;
+		}
+		
+		synchronized (this) {
+			verifiedFits++;
+			
+			if (!agrees)
+				disagreeingFits++;
+			
+			if (deviation > maxDeviation)
+				maxDeviation = deviation;
+		}
+		
+	}
+	
 	public static void addToResultsTable(ResultsTable table, double[] parameters, double[] errors, int slice) {
 		
 		// sigma_x and sigma_y should always be absolute
@@ -218,11 +383,54 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		
 	}
 	
-	public static void fitPeak(ImageProcessor ip, double[] p, double[] e) {
+	/**
+	 * Determines the bounds of a fit in the given window: the center lies inside the window, the height is positive
+	 * and the sigmas lie between {@link #MIN_SIGMA} and the size of the window.
+	 */
+	public static void getBounds(Rectangle window, double[] lower, double[] upper) {
+		
+		lower[0] = Double.NEGATIVE_INFINITY;
+		upper[0] = Double.POSITIVE_INFINITY;
+		lower[1] = 0;
+		upper[1] = Double.POSITIVE_INFINITY;
+		lower[2] = window.x - 0.5;
+		upper[2] = window.x + window.width - 0.5;
+		lower[3] = window.y - 0.5;
+		upper[3] = window.y + window.height - 0.5;
+		lower[4] = MIN_SIGMA;
+		upper[4] = Math.max(window.width, window.height);
+		lower[5] = MIN_SIGMA;
+		upper[5] = upper[4];
+	}
+	
+	public static LevenbergMarquardt fitPeak(ImageProcessor ip, double[] p, double[] e) {
+		return fitPeak(ip, p, e, false);
+	}
+	
+	/**
+	 * Fits a gaussian to the roi of the image processor. With fastMath the single precision
+	 * kernel ({@link FastGaussian2D}) is used instead of the double precision model.
+	 * The parameters are kept within the bounds of {@link #getBounds(Rectangle, double[], double[])}, a fit that
+	 * diverges stops early (see the termination of the returned solver).
+	 * 
+	 * @return the (thread local) solver that was used, which holds the number of iterations
+	 */
+	public static LevenbergMarquardt fitPeak(ImageProcessor ip, double[] p, double[] e, boolean fastMath) {
+		
+		Fitter fitter = fitters.get();
 		Rectangle roi = ip.getRoi();
+		LevenbergMarquardt lm = fitter.lm;
+		
+		if (fastMath) {
+			fitter.fastLm.setWindow(roi);
+			lm = fitter.fastLm;
+		}
+		
+		fitter.ensureCapacity(roi.width * roi.height);
+		getBounds(roi, fitter.lower, fitter.upper);
 		
-		double[][] xs = new double[roi.width * roi.height][2];
-		double[] ys = new double[xs.length];
+		double[][] xs = fitter.xs;
+		double[] ys = fitter.ys;
 			
 		int n = 0;
 		int max = 0;
@@ -246,17 +454,22 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 			}
 		}
 		
-		double[] guess = {ys[min], ys[max] - ys[min], xs[max][0], xs[max][1], 1, 1};
-		
 		if (!Double.isNaN(p[2]) && !Double.isNaN(p[3])) {
 			p[0] = ys[min];
 			p[1] = ip.getf((int)p[2], (int)p[3]) - p[0];
 		}
 		
-		for (int i = 0; i < p.length; i++)
-			if (Double.isNaN(p[i])) p[i] = guess[i];
+		// initial guess
+		if (Double.isNaN(p[0])) p[0] = ys[min];
+		if (Double.isNaN(p[1])) p[1] = ys[max] - ys[min];
+		if (Double.isNaN(p[2])) p[2] = xs[max][0];
+		if (Double.isNaN(p[3])) p[3] = xs[max][1];
+		if (Double.isNaN(p[4])) p[4] = 1;
+		if (Double.isNaN(p[5])) p[5] = 1;
 		
-		lm.solve(xs, ys, null, n, p, null, e, 0.001);
+		lm.solve(xs, ys, null, n, p, null, e, 0.001, SolverWorkspace.forCurrentThread(p.length));
+		
+		return lm;
 	}
 
 	@Override
@@ -266,6 +479,16 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 			
 			IJ.showStatus("found peaks : "  + foundPeaks + " fitted peaks : " + totalFittedPeaks);
 			
+			if (verifiedFits > 0) {
+				IJ.log("fast math verification : " + verifiedFits + " fits repeated in double precision, " + disagreeingFits
+						+ " disagree (max deviation = " + IJ.d2s(maxDeviation, 4) + " times the fitting error)");
+			}
+			
+			if (statistics != null) {
+				statistics.toResultsTable().show("Fit Statistics");
+				IJ.log(statistics.toJson());
+			}
+			
 			table.show("Results");
 			return DONE;
 		}
@@ -296,6 +519,10 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 			maxError[i] = dialog.getNextNumber();
 
 		isRoiFit = dialog.getNextBoolean();
+		useFastMath = dialog.getNextBoolean();
+		verificationInterval = (int)dialog.getNextNumber();
+		recordStatistics = dialog.getNextBoolean();
+		useBatchedFitting = dialog.getNextBoolean();
 		
 		DiscoidalAveragingFilter filter = new DiscoidalAveragingFilter();
 		filter.setCircleOffsets(imp.getWidth(), innerRadius, outerRadius);
@@ -335,6 +562,10 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		dialog.addNumericField("Max_error_sigma_y", maxError[5], 2);
 		
 		dialog.addCheckbox("Fit_peaks_inside_rois", isRoiFit);
+		dialog.addCheckbox("Use_fast_math (single precision)", useFastMath);
+		dialog.addNumericField("Verify_every_n-th_fast_fit (0 = never)", verificationInterval, 0);
+		dialog.addCheckbox("Record_fit_statistics", recordStatistics);
+		dialog.addCheckbox("Batch_fits (double precision only)", useBatchedFitting);
 		
 		dialog.addDialogListener(this);
 		dialog.addPreviewCheckbox(pfr);
@@ -345,6 +576,9 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		
 		isPreview = false;
 		
+		if (recordStatistics)
+			statistics = new FitStatistics();
+		
 		return IJ.setupDialog(imp, flags);
 	}
 	
@@ -0,0 +1,84 @@
+package analyze;
+
+/**
+ * Preallocated arrays for {@link LevenbergMarquardt#solve(double[][], double[], double[], int, double[], boolean[], double[], double, SolverWorkspace)}.
+ *
+ * The matrices are stored as flat (row major) arrays sized for a maximum number of parameters, so a solve
+ * with a workspace does not allocate any memory (after the arrays of the model values and jacobian have
+ * grown to the largest number of points). A workspace must not be used by more than one thread at
+ * the same time; {@link #forCurrentThread(int)} returns a workspace that is attached to the calling thread.
+ */
+public class SolverWorkspace {
+	
+	private static ThreadLocal<SolverWorkspace> workspaces = new ThreadLocal<SolverWorkspace>();
+	
+	private int maxParameters;
+	
+	double[] alpha;
+	double[] beta;
+	double[] dyda;
+	double[] newParameters;
+	double[] covar;
+	int[] varying;
+	
+	// undamped normal equations at the current parameters, kept while steps are rejected
+	double[] normal;
+	double[] gradient;
+	
+	// model values and jacobian (row major, a row of parameters.length columns per point, the number of parameters of
+	// the fit rather than maxParameters; solveLinear compacts it in place to n x m of the varying parameters) at the
+	// current parameters, values at trial parameters and the second directional derivative for geodesic acceleration
+	double[] values = new double[0];
+	double[] jacobian = new double[0];
+	double[] trialValues = new double[0];
+	double[] curvature = new double[0];
+	double[] acceleration;
+	
+	public SolverWorkspace(int maxParameters) {
+		
+		this.maxParameters = maxParameters;
+		
+		alpha = new double[maxParameters * maxParameters];
+		beta = new double[maxParameters];
+		dyda = new double[maxParameters];
+		newParameters = new double[maxParameters];
+		covar = new double[maxParameters * maxParameters];
+		varying = new int[maxParameters];
+		normal = new double[maxParameters * maxParameters];
+		gradient = new double[maxParameters];
+		acceleration = new double[maxParameters];
+	}
+	
+	// grows the arrays of the model values and jacobian to hold n points
+	void ensureCapacity(int n) {
+		
+		if (values.length < n) {
+			values = new double[n];
+			jacobian = new double[n * maxParameters];
+			trialValues = new double[n];
+			curvature = new double[n];
+		}
+		
+	}
+	
+	public int getMaxParameters() {
+		return maxParameters;
+	}
+	
+	/**
+	 * Returns the workspace of the calling thread, it is (re)allocated when it does not support the given
+	 * number of parameters.
+	 */
+	public static SolverWorkspace forCurrentThread(int maxParameters) {
+		
+		SolverWorkspace workspace = workspaces.get();
+		
+		if (workspace == null || workspace.maxParameters < maxParameters) {
+			workspace = new SolverWorkspace(maxParameters);
+			workspaces.set(workspace);
+		}
+		
+		return workspace;
+	}
+	
+}
@@ -0,0 +1,144 @@
+package analyze;
+
+/**
+ * Uniform grid of points for finding the neighbours of a position within a fixed radius.
+ *
+ * The points are bucketed in square cells with a size of at least the radius, so all points within
+ * the radius of a position are in the 3 x 3 cells around the cell of that position. The cells are
+ * stored as ranges of one index array (sorted on cell with a counting sort), so building the grid
+ * takes linear time and a grid can be rebuilt without allocating memory once its arrays are large
+ * enough. A query loops over the cells itself:
+ *
+ * <pre>
+ * for (int cy = grid.getRow(y) - 1; cy &lt;= grid.getRow(y) + 1; cy++)
+ *     for (int cx = grid.getColumn(x) - 1; cx &lt;= grid.getColumn(x) + 1; cx++)
+ *         for (int k = grid.getStart(cx, cy); k &lt; grid.getEnd(cx, cy); k++)
+ *             ... grid.get(k) ...
+ * </pre>
+ */
+public class SpatialGrid {
+
+	// the number of cells is limited to a multiple of the number of points (the cells grow instead)
+	private static final int MAX_CELLS_PER_POINT = 4;
+
+	private double cellSize;
+	private double xMin;
+	private double yMin;
+	private int columns;
+	private int rows;
+
+	private int[] cellStart = new int[1];
+	private int[] items = new int[0];
+	private int[] itemCells = new int[0];
+
+	/**
+	 * Builds the grid for the points from (inclusive) to (exclusive) of x and y, with cells of at least the
+	 * given radius.
+	 */
+	public void build(double[] x, double[] y, int from, int to, double radius) {
+
+		int count = to - from;
+
+		xMin = Double.MAX_VALUE;
+		yMin = Double.MAX_VALUE;
+		double xMax = -Double.MAX_VALUE;
+		double yMax = -Double.MAX_VALUE;
+
+		// (comparisons skip NaN)
+		for (int i = from; i < to; i++) {
+			if (x[i] < xMin) xMin = x[i];
+			if (y[i] < yMin) yMin = y[i];
+			if (x[i] > xMax) xMax = x[i];
+			if (y[i] > yMax) yMax = y[i];
+		}
+
+		if (xMin > xMax || yMin > yMax) {
+			xMin = yMin = xMax = yMax = 0;
+		}
+
+		cellSize = radius > 0 ? radius : 1;
+
+		double cells = ((xMax - xMin) / cellSize + 1) * ((yMax - yMin) / cellSize + 1);
+
+		if (cells > MAX_CELLS_PER_POINT * (count + 1))
+			cellSize *= Math.sqrt(cells / (MAX_CELLS_PER_POINT * (count + 1)));
+
+		columns = (int)((xMax - xMin) / cellSize) + 1;
+		rows = (int)((yMax - yMin) / cellSize) + 1;
+
+		if (cellStart.length < columns * rows + 1)
+			cellStart = new int[columns * rows + 1];
+
+		if (items.length < count) {
+			items = new int[count];
+			itemCells = new int[count];
+		}
+
+		// counting sort on cell
+		for (int i = 0; i <= columns * rows; i++)
+			cellStart[i] = 0;
+
+		for (int i = from; i < to; i++) {
+			int cell = getCell(getColumn(x[i]), getRow(y[i]));
+			itemCells[i - from] = cell;
+			cellStart[cell + 1]++;
+		}
+
+		for (int i = 0; i < columns * rows; i++)
+			cellStart[i + 1] += cellStart[i];
+
+		for (int i = from; i < to; i++) {
+			int cell = itemCells[i - from];
+			items[cellStart[cell]++] = i;
+		}
+
+		// the counting moved every start to the end of its cell
+		for (int i = columns * rows; i > 0; i--)
+			cellStart[i] = cellStart[i - 1];
+
+		cellStart[0] = 0;
+	}
+
+	// cell of a column and row within the grid (points outside the grid, e.g. NaN, are put in the nearest cell)
+	private int getCell(int column, int row) {
+		column = Math.max(0, Math.min(columns - 1, column));
+		row = Math.max(0, Math.min(rows - 1, row));
+		return row * columns + column;
+	}
+
+	/**
+	 * Returns the column of the cell of x, which can be outside the grid.
+	 */
+	public int getColumn(double x) {
+		return (int)Math.floor((x - xMin) / cellSize);
+	}
+
+	/**
+	 * Returns the row of the cell of y, which can be outside the grid.
+	 */
+	public int getRow(double y) {
+		return (int)Math.floor((y - yMin) / cellSize);
+	}
+
+	/**
+	 * Returns the first position (for {@link #get(int)}) of the points in a cell, cells outside the grid are empty.
+	 */
+	public int getStart(int column, int row) {
+		return column < 0 || column >= columns || row < 0 || row >= rows ? 0 : cellStart[row * columns + column];
+	}
+
+	/**
+	 * Returns the position after the last point in a cell.
+	 */
+	public int getEnd(int column, int row) {
+		return column < 0 || column >= columns || row < 0 || row >= rows ? 0 : cellStart[row * columns + column + 1];
+	}
+
+	/**
+	 * Returns the index (in the arrays passed to build) of the point at a position.
+	 */
+	public int get(int position) {
+		return items[position];
+	}
+
+}
@@ -9,6 +9,8 @@ import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
+import util.ResultsTableColumns;
+import util.TrajectoryIndex;
 
 public class StepSizeDistribution implements PlugIn {
 
@@ -41,52 +43,40 @@ public class StepSizeDistribution implements PlugIn {
 		binning = dialog.getNextNumber();
 		minStepSize = dialog.getNextNumber();
 		
-		// determine which rows belong to which trajectory
-		ArrayList<Integer> offsets = new ArrayList<Integer>();
-		offsets.add(0);
-		
-		for (int row = 1; row < table.getCounter(); row++) {
-			int s0 = (int)table.getValue("trajectory", row - 1);
-			int s1 = (int)table.getValue("trajectory", row);
-			
-			if (s0 != s1)
-				offsets.add(row);
-		}
-		
-		offsets.add(table.getCounter());
+		// the rows of every trajectory
+		TrajectoryIndex index = TrajectoryIndex.get(table);
+		int[] slices = ResultsTableColumns.getInts(table, "slice");
+		double[] xs = ResultsTableColumns.get(table, "x");
+		double[] ys = ResultsTableColumns.get(table, "y");
 		
 		ArrayList<Double> stepSizes = new ArrayList<Double>();
 		double maxStepSize = 0;
 		
-		for (int i = 0; i < offsets.size() - 1; i++) {
-			int from = offsets.get(i);
-			int to = offsets.get(i + 1);
-			int trajectory = (int)table.getValue("trajectory", from);
+		for (int i = 0; i < index.size(); i++) {
+			int from = index.getFrom(i);
+			int to = index.getTo(i);
 			
-			if (trajectory >= 0) {
-				
-				for (int row = from; row < to - 1; row++) {
-					int s1 = (int)table.getValue("slice", row);
-					double x1 = table.getValue("x", row);
-					double y1 = table.getValue("y", row);
+			for (int row = from; row < to - 1; row++) {
+				int s1 = slices[row];
+				double x1 = xs[row];
+				double y1 = ys[row];
 
-					int s2 = (int)table.getValue("slice", row + 1);
-					double x2 = table.getValue("x", row + 1);
-					double y2 = table.getValue("y", row + 1);
+				int s2 = slices[row + 1];
+				double x2 = xs[row + 1];
+				double y2 = ys[row + 1];
+				
+				if (s2 - s1 == 1) {
+					double dx = x2 - x1;
+					double dy = y2 - y1;
+					double stepSize = Math.sqrt(dx * dx + dy * dy) * pixelSize;
+					
+					if (stepSize > maxStepSize )
+						maxStepSize = stepSize;
 					
-					if (s2 - s1 == 1) {
-						double dx = x2 - x1;
-						double dy = y2 - y1;
-						double stepSize = Math.sqrt(dx * dx + dy * dy) * pixelSize;
-						
-						if (stepSize > maxStepSize )
-							maxStepSize = stepSize;
-						
-						stepSizes.add(stepSize);
-					}
+					stepSizes.add(stepSize);
 				}
-				
 			}
+			
 		}
 		
 		// create distribution
@@ -125,21 +115,7 @@ public class StepSizeDistribution implements PlugIn {
 		}
 		
 		// fit step size distribution with function
-		LevenbergMarquardt lm = new LevenbergMarquardt() {
-			
-			@Override
-			public double getValue(double[] x, double[] p) {
-				return func(x[0], p[0]);
-			}
-			
-			@Override
-			public void getGradient(double[] x, double[] p, double[] dyda) {
-				double delta = 1e-6;
-				dyda[0] = func(x[0], p[0] + delta);
-				dyda[0] -= func(x[0], p[0] - delta);
-				dyda[0] /= 2 * delta;
-			}
-		};
+		LevenbergMarquardt lm = createModel();
 		
 		double[] p = new double[]{msd};
 		double[] e = new double[1];
@@ -168,6 +144,25 @@ public class StepSizeDistribution implements PlugIn {
 
 	}
 	
+	/**
+	 * Model of {@link #func(double, double)} with the mean square displacement as parameter, the derivative
+	 * is obtained by automatic differentiation.
+	 */
+	public static DualModel createModel() {
+		
+		return new DualModel() {
+			
+			@Override
+			public void compute(double[] x, Dual[] p, Dual result) {
+				double r = x[0];
+				Dual exponential = temporary(0).set(p[0]).divInto(-r * r).exp();
+				
+				result.set(p[0]).divInto(2 * r).mul(exponential);
+			}
+			
+		};
+	}
+	
 	public double func(double r, double msd) {
 		// obtained from "A Wide-Field View at Single Molecules and Single Particles" by F. Lusitani (p. 43)
 		return ((2 * r) / msd) * Math.exp(-((r * r) / msd));
@@ -0,0 +1,210 @@
+package analyze;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import analyze.OnlineTracker.Motion;
+import analyze.ParticleTracker.Linking;
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.plugin.PlugIn;
+
+/**
+ * Tracks the peaks of a results file (csv or tab separated, with slice, x and y columns and sorted on slice as
+ * saved by the peak finder) with an {@link OnlineTracker} and writes the trajectories to a csv file. Only one slice
+ * of peaks and the active trajectories are kept in memory, so the size of the files is not limited by the memory.
+ */
+public class StreamingParticleTracker implements PlugIn {
+
+	private static final Pattern SEPARATOR = Pattern.compile(",|\\t");
+	
+	private int lookAhead = 1;
+	private double maxStepSize = 8;
+	private Linking linking = Linking.GREEDY;
+	private Motion motion = Motion.NONE;
+	private double motionNoise = 1;
+	private double localizationPrecision = 0.1;
+	private boolean keepNonTrajectories = false;
+	
+	@Override
+	public void run(String arg0) {
+		
+		OpenDialog openDialog = new OpenDialog("Peaks (csv)");
+		
+		if (openDialog.getFileName() == null)
+			return;
+		
+		GenericDialog dialog = new GenericDialog("Streaming Particle Tracker");
+		dialog.addNumericField("slice_to_look_ahead (for blinking)", lookAhead, 0);
+		dialog.addNumericField("max_step_size (in pixels)", maxStepSize, 2);
+		dialog.addChoice("linking", Linking.getNames(), linking.toString());
+		dialog.addChoice("motion_model", Motion.getNames(), motion.toString());
+		dialog.addNumericField("motion_noise (in pixels)", motionNoise, 2);
+		dialog.addNumericField("localization_precision (in pixels)", localizationPrecision, 2);
+		dialog.addCheckbox("keep_non_trajectories", keepNonTrajectories);
+		dialog.showDialog();
+		
+		if (dialog.wasCanceled())
+			return;
+		
+		lookAhead = (int)dialog.getNextNumber();
+		maxStepSize = dialog.getNextNumber();
+		linking = Linking.valueOf(Linking.class, dialog.getNextChoice());
+		motion = Motion.valueOf(Motion.class, dialog.getNextChoice());
+		motionNoise = dialog.getNextNumber();
+		localizationPrecision = dialog.getNextNumber();
+		keepNonTrajectories = dialog.getNextBoolean();
+		
+		SaveDialog saveDialog = new SaveDialog("Trajectories (csv)", "trajectories", ".csv");
+		
+		if (saveDialog.getFileName() == null)
+			return;
+		
+		try {
+			int trajectories = track(openDialog.getPath(), saveDialog.getDirectory() + saveDialog.getFileName(), lookAhead, maxStepSize, linking,
+					motion, motionNoise, localizationPrecision, keepNonTrajectories);
+			IJ.showStatus(trajectories + " trajectories");
+		}
+		catch (IOException e) {
+			IJ.error("Streaming Particle Tracker", e.getMessage());
+		}
+		
+	}
+	
+	/**
+	 * Tracks the peaks in the input file and writes the trajectories (trajectory, slice, x, y, dx, dy, step_size and
+	 * trajectory_length columns, one trajectory after the other) to the output file.
+	 * 
+	 * @return the number of trajectories
+	 */
+	public static int track(String input, String output, int lookAhead, double maxStepSize, Linking linking, Motion motion, double motionNoise,
+			double localizationPrecision, final boolean keepNonTrajectories) throws IOException {
+		
+		BufferedReader reader = new BufferedReader(new FileReader(input));
+		final PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(output)));
+		
+		try {
+			
+			String header = reader.readLine();
+			
+			if (header == null)
+				throw new IOException("empty file: " + input);
+			
+			String[] columns = SEPARATOR.split(header);
+			int sliceColumn = -1, xColumn = -1, yColumn = -1;
+			
+			for (int i = 0; i < columns.length; i++) {
+				
+				String column = columns[i].trim();
+				
+				if (column.equals("slice"))
+					sliceColumn = i;
+				else if (column.equals("x"))
+					xColumn = i;
+				else if (column.equals("y"))
+					yColumn = i;
+			}
+			
+			if (sliceColumn == -1 || xColumn == -1 || yColumn == -1)
+				throw new IOException("the file requires slice, x and y columns: " + input);
+			
+			writer.println("trajectory,slice,x,y,dx,dy,step_size,trajectory_length");
+			
+			OnlineTracker tracker = new OnlineTracker(lookAhead, maxStepSize, linking, new TrajectorySink() {
+				
+				@Override
+				public void add(int trajectory, int[] slices, int[] indices, double[] x, double[] y, int length) {
+					
+					if (trajectory == -1 && !keepNonTrajectories)
+						return;
+					
+					for (int i = 0; i < length; i++) {
+						
+						double dx = i > 0 ? x[i] - x[i - 1] : 0;
+						double dy = i > 0 ? y[i] - y[i - 1] : 0;
+						
+						writer.println(trajectory + "," + slices[i] + "," + x[i] + "," + y[i] + "," + dx + "," + dy + "," + Math.sqrt(dx * dx + dy * dy) + "," + length);
+					}
+					
+				}
+				
+			});
+			
+			tracker.setMotion(motion, motionNoise, localizationPrecision);
+			
+			// read the peaks one slice at a time
+			double[] x = new double[1024];
+			double[] y = new double[1024];
+			int count = 0;
+			int slice = 0;
+			int lines = 1;
+			String line;
+			
+			while ((line = reader.readLine()) != null) {
+				
+				lines++;
+				
+				if (line.trim().isEmpty())
+					continue;
+				
+				String[] values = SEPARATOR.split(line);
+				int lineSlice;
+				
+				try {
+					lineSlice = (int)Double.parseDouble(values[sliceColumn]);
+					
+					if (count > 0 && lineSlice != slice) {
+						tracker.add(slice, x, y, count);
+						count = 0;
+					}
+					
+					if (count == x.length) {
+						x = Arrays.copyOf(x, 2 * count);
+						y = Arrays.copyOf(y, 2 * count);
+					}
+					
+					x[count] = Double.parseDouble(values[xColumn]);
+					y[count] = Double.parseDouble(values[yColumn]);
+					count++;
+					slice = lineSlice;
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("could not read line " + lines + ": " + line);
+				}
+				catch (ArrayIndexOutOfBoundsException e) {
+					throw new IOException("could not read line " + lines + ": " + line);
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException("the file is not sorted on slice (line " + lines + ")");
+				}
+				
+			}
+			
+			try {
+				if (count > 0)
+					tracker.add(slice, x, y, count);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IOException("the file is not sorted on slice (line " + lines + ")");
+			}
+			
+			tracker.finish();
+			
+			return tracker.getTrajectoryCount();
+		}
+		finally {
+			reader.close();
+			writer.close();
+		}
+		
+	}
+	
+}
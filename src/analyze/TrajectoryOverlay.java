@@ -0,0 +1,141 @@
+package analyze;
+
+import java.awt.Color;
+import java.awt.Polygon;
+import java.awt.geom.GeneralPath;
+
+import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
+import ij.gui.ShapeRoi;
+
+/**
+ * Draws trajectories as one overlay instead of one roi per trajectory.
+ *
+ * The trajectories are divided over a fixed number of colours (by trajectory number or by time) and all lines of a
+ * colour are one shape, so the overlay has as many rois as there are colours however many trajectories there are.
+ * Points that are closer than a tolerance to the previous point that was drawn are skipped (at the default of half a
+ * pixel this does not change the drawing), which removes most points of slowly moving or immobile particles.
+ *
+ * Rois of single trajectories (e.g. for the roi manager) are only made on request with {@link #getRoi}.
+ */
+public class TrajectoryOverlay {
+
+	public enum Colouring {
+		TRAJECTORY,
+		TIME;
+
+		public static String[] getNames() {
+
+			Colouring[] colourings = values();
+			String[] names = new String[colourings.length];
+
+			for (int i = 0; i < names.length; i++)
+				names[i] = colourings[i].toString();
+
+			return names;
+		}
+
+	};
+
+	public static final int COLOURS = 16;
+
+	/**
+	 * Creates the overlay of the trajectories, the rows have to be sorted on trajectory and slice (rows that do not
+	 * belong to a trajectory, -1, are skipped).
+	 */
+	public static Overlay create(double[] xs, double[] ys, int[] slices, int[] trajectories, Colouring colouring, double tolerance) {
+
+		GeneralPath[] paths = new GeneralPath[COLOURS];
+		int minSlice = Integer.MAX_VALUE;
+		int maxSlice = Integer.MIN_VALUE;
+
+		for (int row = 0; row < slices.length; row++) {
+			minSlice = Math.min(minSlice, slices[row]);
+			maxSlice = Math.max(maxSlice, slices[row]);
+		}
+
+		double toleranceSq = tolerance * tolerance;
+		int last = -1;
+		int lastColour = -1;
+
+		for (int row = 0; row < trajectories.length; row++) {
+
+			if (trajectories[row] < 0)
+				continue;
+
+			boolean isStart = row == 0 || trajectories[row] != trajectories[row - 1];
+			boolean isEnd = row == trajectories.length - 1 || trajectories[row] != trajectories[row + 1];
+
+			// level of detail: skip points close to the last point drawn (the last point of a trajectory is always drawn)
+			if (!isStart && !isEnd) {
+
+				double dx = xs[row] - xs[last];
+				double dy = ys[row] - ys[last];
+
+				if (dx * dx + dy * dy < toleranceSq)
+					continue;
+
+			}
+
+			int colour;
+
+			if (colouring == Colouring.TIME)
+				colour = (int)((long)(slices[row] - minSlice) * COLOURS / (maxSlice - minSlice + 1));
+			else
+				colour = trajectories[row] % COLOURS;
+
+			// a line is added to the path of its colour, it continues the previous line when the colour is the same
+			if (!isStart) {
+
+				if (paths[colour] == null)
+					paths[colour] = new GeneralPath();
+
+				if (colour != lastColour)
+					paths[colour].moveTo(xs[last], ys[last]);
+
+				paths[colour].lineTo(xs[row], ys[row]);
+			}
+			else {
+				colour = -1;
+			}
+
+			last = row;
+			lastColour = colour;
+		}
+
+		Overlay overlay = new Overlay();
+
+		for (int i = 0; i < COLOURS; i++) {
+
+			if (paths[i] == null)
+				continue;
+
+			ShapeRoi roi = new ShapeRoi(paths[i]);
+			roi.setStrokeColor(getColour(i));
+			overlay.add(roi);
+		}
+
+		return overlay;
+	}
+
+	/**
+	 * Returns the colour of a trajectory number or of a part of the slices.
+	 */
+	public static Color getColour(int colour) {
+		return Color.getHSBColor((float)colour / COLOURS, 1, 1);
+	}
+
+	/**
+	 * Creates the roi of one trajectory, the rows from (inclusive) to (exclusive).
+	 */
+	public static PolygonRoi getRoi(double[] xs, double[] ys, int from, int to) {
+
+		Polygon poly = new Polygon();
+
+		for (int row = from; row < to; row++)
+			poly.addPoint((int)xs[row], (int)ys[row]);
+
+		return new PolygonRoi(poly, PolygonRoi.POLYLINE);
+	}
+
+}
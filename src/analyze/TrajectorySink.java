@@ -0,0 +1,16 @@
+package analyze;
+
+/**
+ * Receives the trajectories of an {@link OnlineTracker} as soon as they are finished.
+ */
+public interface TrajectorySink {
+
+	/**
+	 * Called for every finished trajectory, with the trajectory number (in the order in which the trajectories are
+	 * finished) or -1 for a peak that was not linked. The indices are the positions of the peaks in the arrays of
+	 * their slice as passed to {@link OnlineTracker#add(int, double[], double[], int)}. Only the first length elements
+	 * of the arrays are valid and the arrays are reused after this call.
+	 */
+	public void add(int trajectory, int[] slices, int[] indices, double[] x, double[] y, int length);
+
+}
@@ -0,0 +1,110 @@
+package util;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Column wise access to a results table. {@link ResultsTable#getValue(String, int)} and
+ * {@link ResultsTable#setValue(String, int, double)} look up the column by its name on every call, which
+ * dominates loops that visit the rows many times. Such loops copy the columns they need into arrays once,
+ * work on the arrays and write their result columns back in one pass by column index. Writing a column invalidates
+ * the {@link TrajectoryIndex} of the table.
+ */
+public class ResultsTableColumns {
+
+	/**
+	 * Returns a copy of a column.
+	 *
+	 * @throws IllegalArgumentException when the table does not have the column
+	 */
+	public static double[] get(ResultsTable table, String column) {
+
+		int index = table.getColumnIndex(column);
+
+		if (index == ResultsTable.COLUMN_NOT_FOUND)
+			throw new IllegalArgumentException("\"" + column + "\" column not found");
+
+		return get(table, index);
+	}
+
+	/**
+	 * Returns a copy of a column, or an array filled with the default value when the table does not have the column.
+	 */
+	public static double[] get(ResultsTable table, String column, double defaultValue) {
+
+		int index = table.getColumnIndex(column);
+
+		if (index == ResultsTable.COLUMN_NOT_FOUND) {
+
+			double[] values = new double[table.getCounter()];
+
+			for (int row = 0; row < values.length; row++)
+				values[row] = defaultValue;
+
+			return values;
+		}
+
+		return get(table, index);
+	}
+
+	/**
+	 * Returns a copy of a column of integer values (e.g. slice or trajectory numbers).
+	 *
+	 * @throws IllegalArgumentException when the table does not have the column
+	 */
+	public static int[] getInts(ResultsTable table, String column) {
+
+		double[] values = get(table, column);
+		int[] ints = new int[values.length];
+
+		for (int row = 0; row < values.length; row++)
+			ints[row] = (int)values[row];
+
+		return ints;
+	}
+
+	private static double[] get(ResultsTable table, int index) {
+
+		double[] values = new double[table.getCounter()];
+
+		for (int row = 0; row < values.length; row++)
+			values[row] = table.getValueAsDouble(index, row);
+
+		return values;
+	}
+
+	/**
+	 * Writes the values into a column (which is added when the table does not have it yet). Rows are added when
+	 * the table has fewer rows than values.
+	 */
+	public static void set(ResultsTable table, String column, double[] values) {
+
+		int index = getOrAddColumn(table, column, values.length);
+
+		for (int row = 0; row < values.length; row++)
+			table.setValue(index, row, values[row]);
+	}
+
+	public static void set(ResultsTable table, String column, int[] values) {
+
+		int index = getOrAddColumn(table, column, values.length);
+
+		for (int row = 0; row < values.length; row++)
+			table.setValue(index, row, values[row]);
+	}
+
+	private static int getOrAddColumn(ResultsTable table, String column, int rows) {
+
+		TrajectoryIndex.invalidate(table);
+
+		while (table.getCounter() < rows)
+			table.incrementCounter();
+
+		int index = table.getColumnIndex(column);
+
+		if (index == ResultsTable.COLUMN_NOT_FOUND)
+			index = table.getFreeColumn(column);
+
+		return index;
+	}
+
+}
@@ -51,14 +51,87 @@ public class ResultsTableFilter implements PlugIn, DialogListener {
 		min = dialog.getNextNumber();
 		max = dialog.getNextNumber();
 		
-		for (int i = table.getCounter() - 1; i >= 0; i--) {
-			double value = table.getValue(column, i);
+		double[] values = ResultsTableColumns.get(table, column);
+		boolean[] keep = new boolean[values.length];
+		
+		for (int i = 0; i < values.length; i++)
+			keep[i] = values[i] >= min && values[i] <= max;
+		
+		compact(table, keep);
+		table.updateResults();
+	}
+	
+	/**
+	 * Removes the rows that are not kept from the table. Every column is rewritten once (the rows that are kept
+	 * move to the front), instead of shifting all rows after a row for every deleted row.
+	 * 
+	 * @return the number of rows kept
+	 */
+	public static int compact(ResultsTable table, boolean[] keep) {
+		
+		int rows = table.getCounter();
+		int kept = 0;
+		
+		for (int row = 0; row < rows; row++) {
+			if (keep[row])
+				kept++;
+		}
+		
+		if (kept == rows)
+			return kept;
+		
+		for (int column = 0; column <= table.getLastColumn(); column++) {
+			
+			if (!table.columnExists(column))
+				continue;
+			
+			for (int row = 0, k = 0; row < rows; row++) {
+				
+				if (!keep[row])
+					continue;
+				
+				if (k != row) {
+					
+					double value = table.getValueAsDouble(column, row);
+					
+					// text values are NaN as a number
+					String text = Double.isNaN(value) ? table.getStringValue(column, row) : null;
+					
+					if (text != null && !text.equals("NaN"))
+						table.setValue(column, k, text);
+					else
+						table.setValue(column, k, value);
+				}
+				
+				k++;
+			}
 			
-			if (value < min || value > max || Double.isNaN(value))
-				table.deleteRow(i);
 		}
 		
-		table.updateResults();
+		// (row labels are only moved when the table has them, setting a label adds the label column)
+		boolean hasLabels = false;
+		
+		for (int row = 0; row < rows && !hasLabels; row++)
+			hasLabels = table.getLabel(row) != null;
+		
+		for (int row = 0, k = 0; row < rows && hasLabels; row++) {
+			
+			if (!keep[row])
+				continue;
+			
+			if (k != row)
+				table.setLabel(table.getLabel(row), k);
+			
+			k++;
+		}
+		
+		// deleting the last row does not shift any rows
+		for (int row = rows - 1; row >= kept; row--)
+			table.deleteRow(row);
+		
+		TrajectoryIndex.invalidate(table);
+		
+		return kept;
 	}
 
 	@Override
@@ -8,6 +8,8 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import analyze.Dual;
+import analyze.DualModel;
 import analyze.LevenbergMarquardt;
 import ij.IJ;
 import ij.gui.DialogListener;
@@ -109,7 +111,28 @@ public class ResultsTableFitter implements PlugIn, DialogListener {
 		}
 
 
-		LevenbergMarquardt lm = new LevenbergMarquardt() {
+		LevenbergMarquardt lm = createBuiltInModel();
+		
+		if (lm == null)
+			lm = createScriptModel();
+		
+		double[] e = new double[p.length];
+		lm.solve(xs, ys, null, xs.length, p, null, e, 0.001);
+		
+		IJ.log("function : " + functionDefinition);
+		IJ.log("initial parameters : " + initial);
+		IJ.log("fitter parameters : ");
+		
+		for (int i = 0; i < p.length; i++)
+			IJ.log((char)('a' + i) + " = " + p[i] + "(+- " + e[i] + ")");
+		
+		IJ.log("sum of squares = " + lm.rSquared);
+	}
+	
+	// a custom definition is evaluated as script, with central differences for the gradient
+	private LevenbergMarquardt createScriptModel() {
+		
+		return new LevenbergMarquardt() {
 			
 			@Override
 			public double getValue(double[] x, double[] parameters) {
@@ -171,19 +194,71 @@ public class ResultsTableFitter implements PlugIn, DialogListener {
 				
 			}
 		};
+	}
+	
+	/**
+	 * Returns the model of the selected built-in function with automatic differentiation, or null when the
+	 * definition or the number of initial parameters was changed.
+	 */
+	private LevenbergMarquardt createBuiltInModel() {
 		
+		if (!functionDefinition.equals(functionDefinitions[function]))
+			return null;
 		
-		double[] e = new double[p.length];
-		lm.solve(xs, ys, null, xs.length, p, null, e, 0.001);
+		final int polynomialParameters = function + 2;
 		
-		IJ.log("function : " + functionDefinition);
-		IJ.log("initial parameters : " + initial);
-		IJ.log("fitter parameters : ");
+		if (function < 8 && p.length == polynomialParameters) {
+			
+			return new DualModel() {
+				
+				@Override
+				public void compute(double[] x, Dual[] p, Dual result) {
+					
+					// horner's scheme
+					result.set(p[polynomialParameters - 1]);
+					
+					for (int i = polynomialParameters - 2; i >= 0; i--)
+						result.mul(x[0]).add(p[i]);
+				}
+				
+				@Override
+				public boolean isLinear() {
+					return true;
+				}
+				
+			};
+			
+		}
 		
-		for (int i = 0; i < p.length; i++)
-			IJ.log((char)('a' + i) + " = " + p[i] + "(+- " + e[i] + ")");
+		if (functions[function].equals("exponential") && p.length == 2) {
+			
+			return new DualModel() {
+				
+				@Override
+				public void compute(double[] x, Dual[] p, Dual result) {
+					result.set(p[1]).mul(x[0]).exp().mul(p[0]);
+				}
+				
+			};
+			
+		}
 		
-		IJ.log("sum of squares = " + lm.rSquared);
+		if (functions[function].equals("gaussian") && p.length == 3) {
+			
+			return new DualModel() {
+				
+				@Override
+				public void compute(double[] x, Dual[] p, Dual result) {
+					Dual variance = temporary(0).set(p[2]).square().mul(2);
+					
+					result.set(p[1]).subFrom(x[0]).square().div(variance).negate().exp().mul(p[0]);
+				}
+				
+			};
+			
+		}
+		
+		return null;
 	}
 	
 	@Override
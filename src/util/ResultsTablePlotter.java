@@ -34,7 +34,8 @@ public class ResultsTablePlotter implements PlugIn, ActionListener {
 	private JButton nextButton = new JButton("Next");
 	
 	private ResultsTable table;
-	private ArrayList<Integer> groupOffset = new ArrayList<Integer>();
+	private ArrayList<Integer> groupFrom = new ArrayList<Integer>();
+	private ArrayList<Integer> groupTo = new ArrayList<Integer>();
 	private int group = 0;
 	
 	public ResultsTablePlotter() {
@@ -73,28 +74,44 @@ public class ResultsTablePlotter implements PlugIn, ActionListener {
 		plotType = (int)dialog.getNextChoiceIndex();
 		bins = (int)dialog.getNextNumber();
 
-		// sort columns
-		ResultsTableSorter.sort(table, true, xColumn, groupByColumn);
-		
-		// determine on which row each group starts and ends
-		groupOffset.add(0);
-		
-		if (table.getColumnIndex(groupByColumn) != ResultsTable.COLUMN_NOT_FOUND) {
-			double previousValue = table.getValue(groupByColumn, 0);
+		if (groupByColumn.equals("trajectory") && table.getColumnIndex("slice") != ResultsTable.COLUMN_NOT_FOUND) {
 			
-			for (int row = 1; row < table.getCounter(); row++) {
-				
-				double value = table.getValue(groupByColumn, row);
+			// the rows of every trajectory (in the order of the slices)
+			TrajectoryIndex index = TrajectoryIndex.get(table);
+			
+			for (int i = 0; i < index.size(); i++) {
+				groupFrom.add(index.getFrom(i));
+				groupTo.add(index.getTo(i));
+			}
+			
+		}
+		else {
+			
+			// sort columns
+			ResultsTableSorter.sort(table, true, groupByColumn, xColumn);
+			
+			// determine on which row each group starts and ends
+			groupFrom.add(0);
+			
+			if (table.getColumnIndex(groupByColumn) != ResultsTable.COLUMN_NOT_FOUND) {
+				double[] values = ResultsTableColumns.get(table, groupByColumn);
 				
-				if (value != previousValue)
-					groupOffset.add(row);
+				for (int row = 1; row < values.length; row++) {
+					if (values[row] != values[row - 1]) {
+						groupTo.add(row);
+						groupFrom.add(row);
+					}
+				}
 				
-				previousValue = value;
 			}
 			
+			groupTo.add(table.getCounter());
 		}
 		
-		groupOffset.add(table.getCounter());
+		if (groupFrom.isEmpty()) {
+			IJ.error("No trajectories!");
+			return;
+		}
 		
 		
 		JPanel buttonPanel = new JPanel();
@@ -118,8 +135,8 @@ public class ResultsTablePlotter implements PlugIn, ActionListener {
 
 	private void setPlot() {
 		
-		int rowFrom = groupOffset.get(group);
-		int rowTo = groupOffset.get(group + 1);
+		int rowFrom = groupFrom.get(group);
+		int rowTo = groupTo.get(group);
 		
 		int n = rowTo - rowFrom;
 		double[] x = new double[n];
@@ -164,7 +181,7 @@ public class ResultsTablePlotter implements PlugIn, ActionListener {
 		}
 		else if (e.getSource() == nextButton) {
 			
-			if (group < groupOffset.size() - 2)
+			if (group < groupFrom.size() - 1)
 				group++;
 			
 			setPlot();
@@ -1,5 +1,6 @@
 package util;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 
@@ -64,22 +65,27 @@ public class ResultsTableSorter implements PlugIn {
 		for (int i = 0; i < rowNumbers.length; i++)
 			rowNumbers[i] = i;
 		
+		// copies of the columns to sort on (columns that do not exist are skipped)
+		ArrayList<double[]> keyList = new ArrayList<double[]>();
+		
+		for (String column: columns) {
+			if (table.getColumnIndex(column) != ResultsTable.COLUMN_NOT_FOUND)
+				keyList.add(ResultsTableColumns.get(table, column));
+		}
+		
+		final double[][] keys = keyList.toArray(new double[keyList.size()][]);
+		
 		Arrays.sort(rowNumbers, new Comparator<Integer>() {
 
 			@Override
 			public int compare(Integer o1, Integer o2) {
 				
-				for (String column: columns) {
-					
-					if (table.getColumnIndex(column) != ResultsTable.COLUMN_NOT_FOUND) {
-						double value1 = table.getValue(column, o1);
-						double value2 = table.getValue(column, o2);
+				for (double[] key: keys) {
 					
-						int difference = Double.compare(value1, value2); 
+					int difference = Double.compare(key[o1], key[o2]); 
 					
-						if (difference != 0)
-							return ascending ? difference : -difference;
-					}
+					if (difference != 0)
+						return ascending ? difference : -difference;
 					
 				}
 				
@@ -112,6 +118,7 @@ public class ResultsTableSorter implements PlugIn {
 			
 		}
 		
+		TrajectoryIndex.invalidate(table);
 		table.updateResults();
 		
 	}
@@ -0,0 +1,221 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ij.measure.ResultsTable;
+
+/**
+ * The rows of every trajectory of a results table sorted on trajectory and slice: trajectory number, first and last
+ * row, and first and last slice. Trajectory analyses go straight to the rows of a trajectory instead of finding the
+ * boundaries by scanning (and sorting) the table themselves.
+ *
+ * The index of a table is kept with the table ({@link #get(ResultsTable)} returns the same index until the table
+ * changes). The particle tracker creates the index of its results. An index is checked against the table before it
+ * is returned: the number of rows and the trajectory and slice values at the boundaries of every trajectory. This
+ * takes time in the number of trajectories rather than rows, and detects the tables that were sorted differently,
+ * filtered or extended. The utilities that rearrange rows ({@link ResultsTableSorter}, {@link ResultsTableFilter}
+ * and {@link ResultsTableColumns}) invalidate the index of the table as well.
+ *
+ * An index does not change after it is created, so the trajectories can be analysed in parallel.
+ */
+public class TrajectoryIndex {
+
+	private static final Map<ResultsTable, TrajectoryIndex> indices = new WeakHashMap<ResultsTable, TrajectoryIndex>();
+
+	private int rows;
+	private int[] trajectories;
+	private int[] from;
+	private int[] to;
+	private int[] firstSlices;
+	private int[] lastSlices;
+
+	private TrajectoryIndex(int rows, int[] trajectories, int[] from, int[] to, int[] firstSlices, int[] lastSlices) {
+		this.rows = rows;
+		this.trajectories = trajectories;
+		this.from = from;
+		this.to = to;
+		this.firstSlices = firstSlices;
+		this.lastSlices = lastSlices;
+	}
+
+	/**
+	 * Returns the index of the table. When the table does not have a valid index the table is sorted on trajectory
+	 * and slice (unless it already is) and a new index is created.
+	 *
+	 * @throws IllegalArgumentException when the table does not have a trajectory or slice column
+	 */
+	public static TrajectoryIndex get(ResultsTable table) {
+
+		TrajectoryIndex index;
+
+		synchronized (indices) {
+			index = indices.get(table);
+		}
+
+		if (index != null && index.isValid(table))
+			return index;
+
+		return create(table);
+	}
+
+	/**
+	 * Creates the index of the table (sorted on trajectory and slice when it is not) and keeps it with the table.
+	 *
+	 * @throws IllegalArgumentException when the table does not have a trajectory or slice column
+	 */
+	public static TrajectoryIndex create(ResultsTable table) {
+
+		int[] trajectories = ResultsTableColumns.getInts(table, "trajectory");
+		int[] slices = ResultsTableColumns.getInts(table, "slice");
+
+		if (!isSorted(trajectories, slices)) {
+			ResultsTableSorter.sort(table, true, "trajectory", "slice");
+			trajectories = ResultsTableColumns.getInts(table, "trajectory");
+			slices = ResultsTableColumns.getInts(table, "slice");
+		}
+
+		int rows = trajectories.length;
+		int count = 0;
+
+		for (int row = 0; row < rows; row++) {
+			if (trajectories[row] >= 0 && (row == 0 || trajectories[row] != trajectories[row - 1]))
+				count++;
+		}
+
+		int[] numbers = new int[count];
+		int[] from = new int[count];
+		int[] to = new int[count];
+		int[] firstSlices = new int[count];
+		int[] lastSlices = new int[count];
+		int i = 0;
+
+		// (rows that do not belong to a trajectory, -1, are sorted before the trajectories)
+		for (int row = 0; row < rows; row++) {
+
+			if (trajectories[row] < 0)
+				continue;
+
+			if (row == 0 || trajectories[row] != trajectories[row - 1]) {
+				numbers[i] = trajectories[row];
+				from[i] = row;
+				firstSlices[i] = slices[row];
+				i++;
+			}
+
+			to[i - 1] = row + 1;
+			lastSlices[i - 1] = slices[row];
+		}
+
+		TrajectoryIndex index = new TrajectoryIndex(rows, numbers, from, to, firstSlices, lastSlices);
+
+		synchronized (indices) {
+			indices.put(table, index);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Removes the index of a table, e.g. after the rows of the table were changed.
+	 */
+	public static void invalidate(ResultsTable table) {
+
+		synchronized (indices) {
+			indices.remove(table);
+		}
+
+	}
+
+	private static boolean isSorted(int[] trajectories, int[] slices) {
+
+		for (int row = 1; row < trajectories.length; row++) {
+
+			if (trajectories[row] < trajectories[row - 1])
+				return false;
+
+			if (trajectories[row] == trajectories[row - 1] && slices[row] < slices[row - 1])
+				return false;
+
+		}
+
+		return true;
+	}
+
+	// compares the boundaries of the trajectories with the table
+	private boolean isValid(ResultsTable table) {
+
+		if (table.getCounter() != rows)
+			return false;
+
+		int trajectoryColumn = table.getColumnIndex("trajectory");
+		int sliceColumn = table.getColumnIndex("slice");
+
+		if (trajectoryColumn == ResultsTable.COLUMN_NOT_FOUND || sliceColumn == ResultsTable.COLUMN_NOT_FOUND)
+			return false;
+
+		for (int i = 0; i < trajectories.length; i++) {
+
+			if ((int)table.getValueAsDouble(trajectoryColumn, from[i]) != trajectories[i]
+					|| (int)table.getValueAsDouble(trajectoryColumn, to[i] - 1) != trajectories[i]
+					|| (from[i] > 0 && (int)table.getValueAsDouble(trajectoryColumn, from[i] - 1) == trajectories[i])
+					|| (to[i] < rows && (int)table.getValueAsDouble(trajectoryColumn, to[i]) == trajectories[i])
+					|| (int)table.getValueAsDouble(sliceColumn, from[i]) != firstSlices[i]
+					|| (int)table.getValueAsDouble(sliceColumn, to[i] - 1) != lastSlices[i])
+				return false;
+
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the number of trajectories.
+	 */
+	public int size() {
+		return trajectories.length;
+	}
+
+	/**
+	 * Returns the position of a trajectory number in the index, or -1 when the table does not have the trajectory.
+	 */
+	public int indexOf(int trajectory) {
+		int i = Arrays.binarySearch(trajectories, trajectory);
+		return i >= 0 ? i : -1;
+	}
+
+	public int getTrajectory(int i) {
+		return trajectories[i];
+	}
+
+	/**
+	 * Returns the first row of a trajectory.
+	 */
+	public int getFrom(int i) {
+		return from[i];
+	}
+
+	/**
+	 * Returns the row after the last row of a trajectory.
+	 */
+	public int getTo(int i) {
+		return to[i];
+	}
+
+	/**
+	 * Returns the number of peaks of a trajectory.
+	 */
+	public int getLength(int i) {
+		return to[i] - from[i];
+	}
+
+	public int getFirstSlice(int i) {
+		return firstSlices[i];
+	}
+
+	public int getLastSlice(int i) {
+		return lastSlices[i];
+	}
+
+}